@@ -1,2 +1,2 @@
 #!/bin/sh
-java -ea -cp bin webproxy.JavaProxy $*
+java -ea -cp bin webproxy.WebProxy $*
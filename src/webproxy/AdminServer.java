@@ -0,0 +1,311 @@
+package webproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import webproxy.exceptions.ProxyException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Local HTTP endpoint to look at and tune a running proxy. Only listens on
+ * the loopback interface, which browsers can't reach through the proxy.
+ * Answers, in plain text:
+ *
+ * <ul>
+ * <li>/config: the current value of all settings</li>
+ * <li>/set?name=value&amp;...: change live settings</li>
+ * <li>/reload: re-read the config file and apply the live settings it changes</li>
+ * <li>/stats: memory used by in-flight and stored responses</li>
+ * <li>/jfr/start?settings=default|profile&amp;maxage=seconds: start a flight recording,
+ *  which includes the webproxy.* events of every request</li>
+ * <li>/jfr/stop?file=name.jfr: stop the recording and write it to a file of the jfr.dir directory</li>
+ * </ul>
+ *
+ * Everything but /config and /stats changes something, and must be POSTed
+ * with the admin.token setting in the TOKEN_HEADER header; its parameters can
+ * be sent in the query string or as a form. Without a token configured, the
+ * endpoint only lets one look.
+ *
+ * @author Amos Wenger
+ */
+public class AdminServer {
+
+	/** Largest form accepted by the mutating endpoints */
+	static final int MAX_FORM_SIZE = 65536;
+
+	/** Header carrying the admin.token setting, required to change anything */
+	public static final String TOKEN_HEADER = "X-WebProxy-Token";
+
+	Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+	final WebProxy proxy;
+
+	final HttpServer server;
+
+	/** The admin.token setting, or null if nothing may be changed */
+	final byte[] token;
+
+	/** Directory /jfr/stop writes recordings to, nowhere else */
+	final Path recordings;
+
+	/** The flight recording started through /jfr/start, if one is running */
+	Recording recording;
+
+	public AdminServer(WebProxy proxy, int port) throws IOException {
+		this.proxy = proxy;
+		String configured = proxy.getConfig().get("admin.token");
+		token = configured.length() != 0 ? configured.getBytes("UTF-8") : null;
+		recordings = Paths.get(proxy.getConfig().get("jfr.dir")).toAbsolutePath().normalize();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 16);
+
+		server.createContext("/config", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				reply(exchange, 200, AdminServer.this.proxy.getConfig().toString());
+			}
+		});
+
+		server.createContext("/set", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!authorize(exchange))
+					return;
+				String query = readParameters(exchange);
+				if (query == null) {
+					reply(exchange, 400, "usage: POST /set?name=value\n");
+					return;
+				}
+				StringBuffer result = new StringBuffer();
+				Map<String, String> settings = new LinkedHashMap<String, String>();
+				try {
+					for (String pair : query.split("&")) {
+						int equals = pair.indexOf('=');
+						if (equals == -1)
+							throw new ProxyException("Invalid parameter: " + pair);
+						String name = URLDecoder.decode(pair.substring(0, equals), "UTF-8");
+						String value = URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+						settings.put(name, value);
+						result.append(name + " = " + value + "\n");
+					}
+					// all checked before any is applied, so that the proxy never runs half of them
+					AdminServer.this.proxy.getConfig().setAll(settings);
+				} catch (ProxyException e) {
+					reply(exchange, 400, e.getMessage() + "\n");
+					return;
+				}
+				AdminServer.this.proxy.applyLiveSettings();
+				reply(exchange, 200, result.toString());
+			}
+		});
+
+		server.createContext("/reload", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!authorize(exchange))
+					return;
+				try {
+					Map<String, String> changed = AdminServer.this.proxy.getConfig().load();
+					StringBuffer result = new StringBuffer();
+					for (Map.Entry<String, String> entry : changed.entrySet()) {
+						result.append(entry.getKey() + " = " + entry.getValue()
+								+ (ProxyConfig.isLive(entry.getKey()) ? "" : " (needs a restart)") + "\n");
+					}
+					AdminServer.this.proxy.applyLiveSettings();
+					reply(exchange, 200, result.length() == 0 ? "nothing changed\n" : result.toString());
+				} catch (ProxyException e) {
+					reply(exchange, 400, e.getMessage() + "\n");
+				}
+			}
+		});
+
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				reply(exchange, 200, AdminServer.this.proxy.getStats());
+			}
+		});
+
+		server.createContext("/jfr/start", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!authorize(exchange))
+					return;
+				String parameters = readParameters(exchange);
+				String settings = getParameter(parameters, "settings", "default");
+				String maxAge = getParameter(parameters, "maxage", "0");
+				synchronized (AdminServer.this) {
+					if (recording != null) {
+						reply(exchange, 400, "A recording is already running, stop it first\n");
+						return;
+					}
+					Recording started;
+					try {
+						started = new Recording(Configuration.getConfiguration(settings));
+						if (Long.parseLong(maxAge) > 0)
+							started.setMaxAge(Duration.ofSeconds(Long.parseLong(maxAge)));
+					} catch (IOException e) {
+						reply(exchange, 400, "Unknown settings: " + settings + "\n");
+						return;
+					} catch (ParseException e) {
+						reply(exchange, 400, "Invalid settings " + settings + ": " + e.getMessage() + "\n");
+						return;
+					} catch (NumberFormatException e) {
+						reply(exchange, 400, "Invalid maxage: " + maxAge + "\n");
+						return;
+					}
+					started.setName("webproxy");
+					started.start();
+					recording = started;
+				}
+				logger.log(Level.INFO, "Started a flight recording with the " + settings + " settings");
+				reply(exchange, 200, "Recording with the " + settings + " settings\n");
+			}
+		});
+
+		server.createContext("/jfr/stop", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!authorize(exchange))
+					return;
+				String file = getParameter(readParameters(exchange), "file",
+						"webproxy-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+				Path path = resolveRecording(file);
+				if (path == null) {
+					reply(exchange, 400, "Invalid file name: " + file + ", expected a name ending in .jfr, without directories\n");
+					return;
+				}
+				Files.createDirectories(recordings);
+				synchronized (AdminServer.this) {
+					if (recording == null) {
+						reply(exchange, 400, "No recording running\n");
+						return;
+					}
+					try {
+						recording.stop();
+						recording.dump(path);
+					} catch (IOException e) {
+						reply(exchange, 500, "Couldn't write the recording to " + path + ": " + e + "\n");
+						return;
+					} finally {
+						recording.close();
+						recording = null;
+					}
+				}
+				logger.log(Level.INFO, "Flight recording written to " + path);
+				reply(exchange, 200, "Recording written to " + path + "\n");
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+		logger.log(Level.INFO, "Admin endpoint on http://127.0.0.1:" + server.getAddress().getPort() + "/");
+	}
+
+	/**
+	 * Check that a request may change something: it must be a POST carrying the token,
+	 * so that it can't be made by a link or a page opened in a browser.
+	 * Answers the request if it may not.
+	 *
+	 * @return true if the request may go on.
+	 */
+	private boolean authorize(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("POST")) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			reply(exchange, 405, "Use POST to change anything\n");
+			return false;
+		}
+		if (token == null) {
+			reply(exchange, 403, "Set admin.token to change anything through the admin endpoint\n");
+			return false;
+		}
+		String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+		// compared in constant time, so that it can't be guessed from how long the answer takes
+		if (sent == null || !MessageDigest.isEqual(token, sent.getBytes("UTF-8"))) {
+			logger.log(Level.WARNING, "Admin request with a wrong token from " + exchange.getRemoteAddress());
+			reply(exchange, 401, "Missing or wrong " + TOKEN_HEADER + " header\n");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param file the name of a recording file, as sent to /jfr/stop.
+	 * @return where to write it in the recordings directory, or null if the name
+	 *  isn't a plain file name ending in .jfr, which could write elsewhere or over something else.
+	 */
+	Path resolveRecording(String file) {
+		if (!file.endsWith(".jfr") || file.indexOf('/') != -1 || file.indexOf('\\') != -1
+				|| file.startsWith(".") || file.indexOf('\0') != -1)
+			return null;
+		Path path = recordings.resolve(file).normalize();
+		return path.getParent().equals(recordings) ? path : null;
+	}
+
+	/**
+	 * @return the raw parameters of a request, from its form body if it has one,
+	 *  from its query string otherwise, or null if there are none.
+	 */
+	private static String readParameters(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		InputStream in = exchange.getRequestBody();
+		byte[] buffer = new byte[1024];
+		int bytesRead;
+		while ((bytesRead = in.read(buffer)) != -1) {
+			if (body.size() + bytesRead > MAX_FORM_SIZE)
+				throw new IOException("Form too large");
+			body.write(buffer, 0, bytesRead);
+		}
+		in.close();
+		if (body.size() != 0)
+			return body.toString("UTF-8").trim();
+		return exchange.getRequestURI().getRawQuery();
+	}
+
+	/**
+	 * @return the decoded value of a parameter, or defaultValue if it isn't there.
+	 */
+	private static String getParameter(String query, String name, String defaultValue) throws IOException {
+		if (query == null)
+			return defaultValue;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals != -1 && URLDecoder.decode(pair.substring(0, equals), "UTF-8").equals(name))
+				return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+		}
+		return defaultValue;
+	}
+
+	private static void reply(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+}
@@ -0,0 +1,137 @@
+package webproxy;
+
+/**
+ * A server of a backend group, and what we've observed of it: requests in
+ * progress, response time, and failures.
+ *
+ * Response times are tracked as a peak-EWMA: a sample higher than the
+ * average replaces it right away, lower ones are blended in with a weight
+ * decaying over DECAY_NANOS, so a backend that slows down is avoided at once
+ * and only trusted again gradually. The average also decays while no sample
+ * comes in, so that an avoided backend ends up being tried again.
+ *
+ * @author Amos Wenger
+ */
+public class Backend implements BackendMBean {
+
+	/** Time constant of the response time average */
+	static final double DECAY_NANOS = 10e9;
+
+	/** Cost of a backend busy with its very first requests: we know nothing of it yet */
+	static final double UNKNOWN_PENALTY = 1e12;
+
+	/** "host:port" */
+	final String name;
+
+	int outstanding = 0;
+
+	/** Peak-EWMA of the response time, in nanoseconds, as of ewmaStamp */
+	double ewma = 0;
+	long ewmaStamp = System.nanoTime();
+
+	long requests = 0;
+	long failures = 0;
+
+	/** Failures since the last success, see BackendGroup for ejection */
+	int consecutiveFailures = 0;
+	int ejections = 0;
+	long ejectedUntil = 0;
+
+	public Backend(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Count a request sent to the backend.
+	 */
+	synchronized void start() {
+		outstanding++;
+		requests++;
+	}
+
+	/**
+	 * Count a request the backend answered, or failed to.
+	 *
+	 * @param responseNanos how long the response took, to update the average
+	 * @param failed true if the request failed or got a 5xx response
+	 */
+	synchronized void finish(long responseNanos, boolean failed) {
+		outstanding--;
+		long now = System.nanoTime();
+		if (responseNanos > ewma) {
+			ewma = responseNanos;
+		} else {
+			double weight = Math.exp(-(now - ewmaStamp) / DECAY_NANOS);
+			ewma = ewma * weight + responseNanos * (1 - weight);
+		}
+		ewmaStamp = now;
+		if (failed) {
+			failures++;
+			consecutiveFailures++;
+		} else {
+			consecutiveFailures = 0;
+		}
+	}
+
+	/**
+	 * Forget a request that never reached the backend, eg. sent over a pooled
+	 * connection it had already closed.
+	 */
+	synchronized void abandon() {
+		outstanding--;
+		requests--;
+	}
+
+	/**
+	 * @return the peak-EWMA cost of sending one more request: the expected
+	 *  response time, times the requests it'll queue behind.
+	 */
+	synchronized double getCost() {
+		double decayed = ewma * Math.exp(-(System.nanoTime() - ewmaStamp) / DECAY_NANOS);
+		if (decayed == 0 && outstanding != 0)
+			return UNKNOWN_PENALTY + outstanding;
+		return decayed * (outstanding + 1);
+	}
+
+	synchronized boolean isEjected(long now) {
+		return now < ejectedUntil;
+	}
+
+	@Override
+	public synchronized int getOutstandingRequests() {
+		return outstanding;
+	}
+
+	@Override
+	public synchronized double getPeakEwmaMillis() {
+		return ewma / 1e6;
+	}
+
+	@Override
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	@Override
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	@Override
+	public synchronized int getEjections() {
+		return ejections;
+	}
+
+	@Override
+	public boolean isEjected() {
+		return isEjected(System.currentTimeMillis());
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: %d outstanding, peak-EWMA %.2fms, %d requests, %d failures, %d ejections%s",
+				name, outstanding, ewma / 1e6, requests, failures, ejections,
+				isEjected(System.currentTimeMillis()) ? " (ejected)" : "");
+	}
+
+}
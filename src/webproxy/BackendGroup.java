@@ -0,0 +1,243 @@
+package webproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import webproxy.exceptions.HTTPServerException;
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Servers that can all answer the same requests, in reverse-proxy mode.
+ *
+ * Each request goes to one backend, picked either as the one with the least
+ * requests in progress, or by peak-EWMA: the cheaper of two random backends,
+ * the cost being the expected response time times the requests in progress.
+ *
+ * Health is checked passively, from the requests themselves: a backend failing
+ * CONSECUTIVE_FAILURES requests in a row (connection errors, timeouts, 5xx
+ * responses) is ejected for EJECTION_MILLIS, longer each time it happens again,
+ * unless that would leave less than half of the group. A failed request is
+ * retried once on another backend if it's idempotent, or if it never reached the
+ * backend. A pooled connection found closed by the backend before any byte of the
+ * response isn't held against it: an idempotent request is then sent again, once,
+ * on a new connection.
+ *
+ * Connections to backends are pooled, see ConnectionPool.
+ *
+ * @author Amos Wenger
+ */
+public class BackendGroup {
+
+	public static final int LEAST_OUTSTANDING = 0;
+	public static final int PEAK_EWMA = 1;
+
+	/** Failures in a row that get a backend ejected */
+	static final int CONSECUTIVE_FAILURES = 5;
+
+	/** How long a first ejection lasts */
+	static final long EJECTION_MILLIS = 10000;
+
+	/** Ejections get longer each time, up to this many times EJECTION_MILLIS */
+	static final int MAX_EJECTION_FACTOR = 8;
+
+	/** Backends that may be ejected at once, in percent of the group */
+	static final int MAX_EJECTED_PERCENT = 50;
+
+	/** Backends tried for one request */
+	static final int MAX_ATTEMPTS = 2;
+
+	Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+	final String name;
+
+	final List<Backend> backends = new ArrayList<Backend>();
+
+	final int policy;
+
+	final TCPConnections connections;
+
+	final ConnectionPool pool;
+
+	/** Where scans start, so that ties between backends are broken in turn */
+	final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param name the name of the group, as used by routes.
+	 * @param servers the backends, as "host:port".
+	 * @param policy LEAST_OUTSTANDING or PEAK_EWMA.
+	 * @param pool where connections to the backends are kept between requests.
+	 */
+	public BackendGroup(String name, List<String> servers, int policy, ConnectionPool pool) {
+		this.name = name;
+		this.policy = policy;
+		this.pool = pool;
+		this.connections = pool.connections;
+		for (String server : servers)
+			backends.add(new Backend(server));
+	}
+
+	/**
+	 * Send a request to a backend and read its response, retrying on another
+	 * backend if it couldn't be reached.
+	 *
+	 * Responses returned by this method must be passed to TCPConnections.releaseHTTPResponse
+	 * once they're no longer needed.
+	 *
+	 * @param extraHeaders header lines to add to the request, or null.
+	 * @param excludedHeaders the names of the received headers to leave out.
+	 * @param isHead true if only the headers of the response should be read.
+	 * @param relayCid the connection to stream the response to if it can't be buffered,
+	 *  TCPConnections.DROP_IF_TOO_LARGE, or -1.
+	 * @return the response, or null if it was streamed to relayCid or dropped.
+	 * @throws HTTPServerException if no backend could answer.
+	 */
+	HTTPResponse exchange(HTTPRequest request, String extraHeaders, String[] excludedHeaders,
+			boolean isHead, int relayCid) throws ProxyException {
+		ProxyException failure = null;
+		Backend previous = null;
+		int attempts = 0;
+		boolean idempotent = request.isIdempotent();
+		// once a pooled connection was found closed, only new ones are used
+		boolean reopened = false;
+
+		while (attempts < MAX_ATTEMPTS) {
+			Backend backend = pick(previous);
+			backend.start();
+			long start = System.nanoTime();
+			int cid = reopened ? -1 : pool.take(backend.name);
+			boolean pooled = cid != -1;
+			try {
+				if (!pooled)
+					cid = pool.open(backend.name);
+				connections.sendHTTPRequest(cid, request.toOriginFormBuffers(true, extraHeaders, excludedHeaders));
+				HTTPResponse response = isHead ? connections.getHTTPResponseHead(cid)
+						: connections.getPersistentHTTPResponse(cid, relayCid);
+
+				boolean failed = response != null && response.getStatus() != null && response.getStatus().startsWith("5");
+				backend.finish(System.nanoTime() - start, failed);
+				if (failed)
+					checkEjection(backend);
+				// the body of a response to HEAD isn't there to tell where the next response starts
+				if (isHead)
+					pool.close(cid);
+				else
+					pool.giveBack(backend.name, cid);
+				return response;
+			} catch (ProxyException e) {
+				// -1 if no connection could be opened: the request never left
+				boolean sent = cid != -1;
+				boolean closedWhileIdle = pooled && connections.wasClosedBeforeResponse(cid);
+				if (sent)
+					pool.close(cid);
+				if (relayCid >= 0 && connections.hasRelayed(relayCid)) {
+					backend.finish(System.nanoTime() - start, true);
+					throw e;
+				}
+				if (closedWhileIdle && idempotent) {
+					// closed by the backend while idle, not its fault: try again on a new connection
+					backend.abandon();
+					reopened = true;
+					continue;
+				}
+				// timeouts included: a backend that hangs must get ejected
+				backend.finish(System.nanoTime() - start, true);
+				checkEjection(backend);
+				logger.log(Level.FINE, "backend " + backend.name + " of " + name + " failed: " + e);
+				failure = e;
+				previous = backend;
+				attempts++;
+				if (sent && !idempotent)
+					break;
+			}
+		}
+		throw new HTTPServerException("No backend of " + name + " could answer", failure);
+	}
+
+	/**
+	 * @param avoid a backend that just failed, or null.
+	 * @return the backend to send the next request to.
+	 */
+	Backend pick(Backend avoid) {
+		long now = System.currentTimeMillis();
+		List<Backend> candidates = new ArrayList<Backend>(backends.size());
+		for (Backend backend : backends) {
+			if (backend != avoid && !backend.isEjected(now))
+				candidates.add(backend);
+		}
+		if (candidates.isEmpty()) {
+			// nothing healthy left: better try an ejected backend than fail right away
+			for (Backend backend : backends) {
+				if (backend != avoid)
+					candidates.add(backend);
+			}
+			if (candidates.isEmpty())
+				return avoid;
+		}
+
+		int size = candidates.size();
+		if (size == 1)
+			return candidates.get(0);
+
+		if (policy == PEAK_EWMA) {
+			// power of two choices: nearly as good as the best, without herding onto it
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(size);
+			int second = random.nextInt(size - 1);
+			if (second >= first)
+				second++;
+			Backend a = candidates.get(first), b = candidates.get(second);
+			return a.getCost() <= b.getCost() ? a : b;
+		}
+
+		int offset = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		Backend best = null;
+		int bestOutstanding = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			Backend backend = candidates.get((offset + i) % size);
+			int outstanding = backend.getOutstandingRequests();
+			if (outstanding < bestOutstanding) {
+				best = backend;
+				bestOutstanding = outstanding;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Eject a backend that failed too many times in a row, if enough of the group stays in.
+	 */
+	private synchronized void checkEjection(Backend backend) {
+		long now = System.currentTimeMillis();
+		int ejected = 0;
+		for (Backend other : backends) {
+			if (other.isEjected(now))
+				ejected++;
+		}
+
+		synchronized (backend) {
+			if (backend.consecutiveFailures < CONSECUTIVE_FAILURES || backend.isEjected(now))
+				return;
+			if ((ejected + 1) * 100 > backends.size() * MAX_EJECTED_PERCENT)
+				return;
+			backend.ejections++;
+			backend.consecutiveFailures = 0;
+			backend.ejectedUntil = now + EJECTION_MILLIS * Math.min(backend.ejections, MAX_EJECTION_FACTOR);
+		}
+		logger.log(Level.WARNING, "Ejected backend " + backend.name + " of " + name + " after "
+				+ CONSECUTIVE_FAILURES + " failures in a row");
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer result = new StringBuffer();
+		result.append("backend group " + name + " (" + (policy == PEAK_EWMA ? "peak-ewma" : "least-outstanding") + "):\n");
+		for (Backend backend : backends)
+			result.append("  " + backend + "\n");
+		return result.toString();
+	}
+
+}
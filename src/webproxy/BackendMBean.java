@@ -0,0 +1,41 @@
+package webproxy;
+
+/**
+ * Management interface of Backend, to see how load is spread over a
+ * backend group and which backends are ejected.
+ *
+ * @author Amos Wenger
+ */
+public interface BackendMBean {
+
+	/**
+	 * @return the number of requests sent to the backend and not answered yet
+	 */
+	public int getOutstandingRequests();
+
+	/**
+	 * @return the peak-EWMA of the backend's response time, in milliseconds
+	 */
+	public double getPeakEwmaMillis();
+
+	/**
+	 * @return the number of requests sent to the backend
+	 */
+	public long getRequests();
+
+	/**
+	 * @return the number of requests that failed or got a 5xx response
+	 */
+	public long getFailures();
+
+	/**
+	 * @return the number of times the backend was ejected for failing too often
+	 */
+	public int getEjections();
+
+	/**
+	 * @return true if the backend is currently ejected
+	 */
+	public boolean isEjected();
+
+}
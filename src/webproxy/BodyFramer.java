@@ -0,0 +1,330 @@
+package webproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Finds where the body of an HTTP/1.1 message ends as its bytes come in,
+ * and optionally changes its framing on the way (RFC 7230, 3.3.3 and 4.1).
+ * Bodies may be delimited by a Content-Length, sent in chunks followed by
+ * trailers, or last until the connection is closed.
+ *
+ * It's a state machine fed ByteBuffers of any size, so that bodies never need
+ * to be buffered whole: process() consumes what it can of the input, writes
+ * to the output what the mode says, and is called again with more input or
+ * more room in the output. In the output, the body can be:
+ *
+ * <ul>
+ * <li>PASS_THROUGH: as received, framing included</li>
+ * <li>DECHUNK: without chunk framing and trailers, ie. just the body</li>
+ * <li>RECHUNK: in chunks, whatever its framing was, trailers kept</li>
+ * </ul>
+ *
+ * Bytes of the input past the end of the body are left in it, they're the
+ * start of the next message.
+ *
+ * @author Amos Wenger
+ */
+public class BodyFramer {
+
+	/** Output the body as received, framing included */
+	public static final int PASS_THROUGH = 0;
+
+	/** Output the body only, without chunk framing and trailers */
+	public static final int DECHUNK = 1;
+
+	/** Output the body in chunks, whatever its framing was */
+	public static final int RECHUNK = 2;
+
+	/** Longest chunk size line or trailer line accepted */
+	static final int MAX_LINE_LENGTH = 4096;
+
+	/** Most trailer bytes kept to be sent again when rechunking */
+	static final int MAX_TRAILERS_LENGTH = 16384;
+
+	/** Room taken in the output by a chunk size line and the CRLF after the data, sizes being ints */
+	static final int CHUNK_OVERHEAD = 8 + 2 + 2;
+
+	static final byte[] CRLF = "\r\n".getBytes();
+	static final byte[] LAST_CHUNK = "0\r\n".getBytes();
+	static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	// States: in a body delimited by its length, or the end of the connection
+	private static final int LENGTH = 0;
+	private static final int UNTIL_CLOSE = 1;
+	// in the size line of a chunk, after the size, in its data, in the CRLF after the data
+	private static final int CHUNK_SIZE = 2;
+	private static final int CHUNK_EXTENSION = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_DATA_END = 5;
+	// in the trailers after the last chunk, and past the end of the body
+	private static final int TRAILER = 6;
+	private static final int DONE = 7;
+
+	final int mode;
+
+	final boolean closeDelimited;
+
+	int state;
+
+	/** Bytes left in a body delimited by its length, or in the current chunk */
+	long remaining;
+
+	/** Hex digits of the current chunk size, or length of the current line */
+	int digits = 0;
+	int lineLength = 0;
+
+	/** Bytes of the body, framing left out */
+	long bodyBytes = 0;
+
+	/** Trailers received, when rechunking */
+	byte[] trailers;
+	int trailersLength = 0;
+
+	/** Framing not written yet for lack of room in the output, the last chunk when rechunking */
+	ByteBuffer pending;
+
+	private BodyFramer(int mode, int state, long remaining) {
+		this.mode = mode;
+		this.state = state;
+		this.remaining = remaining;
+		this.closeDelimited = state == UNTIL_CLOSE;
+		if (state == LENGTH && remaining == 0)
+			end();
+	}
+
+	/**
+	 * @return a framer for a body of the given length.
+	 */
+	public static BodyFramer forLength(long length, int mode) {
+		return new BodyFramer(mode, LENGTH, length);
+	}
+
+	/**
+	 * @return a framer for a chunked body.
+	 */
+	public static BodyFramer forChunked(int mode) {
+		return new BodyFramer(mode, CHUNK_SIZE, 0);
+	}
+
+	/**
+	 * @return a framer for a body ending with the connection.
+	 */
+	public static BodyFramer untilClose(int mode) {
+		return new BodyFramer(mode, UNTIL_CLOSE, 0);
+	}
+
+	/**
+	 * @param head the status line and headers of a response to anything but a HEAD request.
+	 * @return a framer for the body of the response, as its headers announce it.
+	 */
+	public static BodyFramer forResponse(HTTPResponse head, int mode) {
+		if (head.isChunked())
+			return forChunked(mode);
+		long length = head.getContentLength();
+		return length >= 0 ? forLength(length, mode) : untilClose(mode);
+	}
+
+	/**
+	 * Consume the bytes of the input that belong to the body, writing them to
+	 * the output as the mode says. Stops when the input is empty, the output is
+	 * full, or the body ended.
+	 *
+	 * In PASS_THROUGH mode the output may be null: the consumed input is then
+	 * the output, and no bytes are copied.
+	 *
+	 * @param in the bytes received, from its position to its limit.
+	 * @param out where to write the body, from its position to its limit.
+	 * @return true once the body ended and was all written.
+	 * @throws ProxyException if the framing of the body is invalid.
+	 */
+	public boolean process(ByteBuffer in, ByteBuffer out) throws ProxyException {
+		while (true) {
+			if (pending != null) {
+				int count = Math.min(pending.remaining(), out.remaining());
+				copy(pending, count, out);
+				if (pending.hasRemaining())
+					return false;
+				pending = null;
+			}
+			if (state == DONE)
+				return true;
+			if (!in.hasRemaining())
+				return false;
+
+			switch (state) {
+			case LENGTH:
+			case CHUNK_DATA: {
+				int count = emitData(in, (int) Math.min(in.remaining(), remaining), out);
+				if (count == 0)
+					return false;
+				remaining -= count;
+				if (remaining == 0) {
+					if (state == LENGTH) {
+						end();
+					} else {
+						state = CHUNK_DATA_END;
+					}
+				}
+				break;
+			}
+			case UNTIL_CLOSE:
+				if (emitData(in, in.remaining(), out) == 0)
+					return false;
+				break;
+			default:
+				// framing, one byte at a time
+				if (mode == PASS_THROUGH && out != null && !out.hasRemaining())
+					return false;
+				byte b = in.get();
+				if (mode == PASS_THROUGH && out != null)
+					out.put(b);
+				frame(b);
+			}
+		}
+	}
+
+	/**
+	 * Tell that the connection was closed: this ends bodies delimited by it.
+	 *
+	 * @param out where to write the end of the body, if there's more to write.
+	 * @return true once the body was all written, false if the output needs more room.
+	 * @throws ProxyException if the body was cut short.
+	 */
+	public boolean finish(ByteBuffer out) throws ProxyException {
+		if (state == UNTIL_CLOSE)
+			end();
+		else if (state != DONE)
+			throw new ProxyException("Connection closed before the end of the body");
+		return process(EMPTY, out);
+	}
+
+	/**
+	 * @return true once the body ended and was all written.
+	 */
+	public boolean isDone() {
+		return state == DONE && pending == null;
+	}
+
+	/**
+	 * @return true if the body ends with the connection, which then can't carry another message.
+	 */
+	public boolean isCloseDelimited() {
+		return closeDelimited;
+	}
+
+	/**
+	 * @return the bytes of the body seen so far, framing left out.
+	 */
+	public long getBodyBytes() {
+		return bodyBytes;
+	}
+
+	// Write up to count bytes of body data from in to out, framed as the mode says,
+	// and return how many were consumed
+	private int emitData(ByteBuffer in, int count, ByteBuffer out) {
+		if (out == null) {
+			in.position(in.position() + count);
+		} else if (mode == RECHUNK) {
+			count = Math.min(count, out.remaining() - CHUNK_OVERHEAD);
+			if (count <= 0)
+				return 0;
+			String size = Integer.toHexString(count);
+			for (int i = 0; i < size.length(); i++)
+				out.put((byte) size.charAt(i));
+			out.put(CRLF);
+			copy(in, count, out);
+			out.put(CRLF);
+		} else {
+			count = Math.min(count, out.remaining());
+			copy(in, count, out);
+		}
+		bodyBytes += count;
+		return count;
+	}
+
+	// Follow the chunk framing, one byte at a time
+	private void frame(byte b) throws ProxyException {
+		switch (state) {
+		case CHUNK_SIZE:
+			int digit = Character.digit(b, 16);
+			if (digit != -1) {
+				if (++digits > 15)
+					throw new ProxyException("Chunk size too large");
+				remaining = remaining * 16 + digit;
+			} else if (digits == 0) {
+				throw new ProxyException("Invalid chunk size");
+			} else if (b == '\n') {
+				endChunkSize();
+			} else if (b == ';' || b == ' ' || b == '\t' || b == '\r') {
+				state = CHUNK_EXTENSION;
+			} else {
+				throw new ProxyException("Invalid chunk size");
+			}
+			break;
+		case CHUNK_EXTENSION:
+			if (b == '\n')
+				endChunkSize();
+			else if (++lineLength > MAX_LINE_LENGTH)
+				throw new ProxyException("Chunk extension too long");
+			break;
+		case CHUNK_DATA_END:
+			if (b == '\n') {
+				state = CHUNK_SIZE;
+				digits = 0;
+				lineLength = 0;
+			} else if (b != '\r') {
+				throw new ProxyException("Chunk not followed by CRLF");
+			}
+			break;
+		case TRAILER:
+			if (mode == RECHUNK) {
+				if (trailersLength == MAX_TRAILERS_LENGTH)
+					throw new ProxyException("Trailers too long");
+				if (trailers == null)
+					trailers = new byte[256];
+				else if (trailersLength == trailers.length)
+					trailers = Arrays.copyOf(trailers, Math.min(trailers.length * 2, MAX_TRAILERS_LENGTH));
+				trailers[trailersLength++] = b;
+			}
+			if (b == '\n') {
+				if (lineLength == 0)
+					end();
+				lineLength = 0;
+			} else if (b != '\r' && ++lineLength > MAX_LINE_LENGTH) {
+				throw new ProxyException("Trailer too long");
+			}
+			break;
+		}
+	}
+
+	private void endChunkSize() {
+		lineLength = 0;
+		state = remaining == 0 ? TRAILER : CHUNK_DATA;
+	}
+
+	// The body ended: when rechunking, the last chunk and the trailers are still to be written
+	private void end() {
+		state = DONE;
+		if (mode != RECHUNK)
+			return;
+		pending = ByteBuffer.allocate(LAST_CHUNK.length + (trailers == null ? CRLF.length : trailersLength));
+		pending.put(LAST_CHUNK);
+		if (trailers == null)
+			pending.put(CRLF);
+		else
+			pending.put(trailers, 0, trailersLength);
+		pending.flip();
+	}
+
+	// Copy count bytes from in to out, in bulk
+	private static void copy(ByteBuffer in, int count, ByteBuffer out) {
+		int limit = in.limit();
+		in.limit(in.position() + count);
+		out.put(in);
+		in.limit(limit);
+	}
+
+}
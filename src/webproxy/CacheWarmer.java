@@ -0,0 +1,384 @@
+package webproxy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Warms the cache up after a restart, so that the origins don't get every
+ * request at once.
+ *
+ * The URLs of the stored responses, ranked by their recent requests (see
+ * CachedResponse.getHitScore), are saved to a snapshot file every few seconds
+ * and when the proxy stops. On startup, the URLs of the last snapshot are
+ * fetched again, the hottest first, in the background while the proxy
+ * already serves clients: at most 'warmup.concurrency' at a time, and
+ * 'warmup.rate' per second. Responses go to the cache of every shard.
+ *
+ * Progress is logged as it goes, and so is the hit ratio of each of the first
+ * minutes after startup. Both are also part of the stats.
+ *
+ * @author Amos Wenger
+ */
+public class CacheWarmer {
+
+	/** How often progress is logged while warming up */
+	static final long PROGRESS_MILLIS = 10000;
+
+	/** Minutes after startup whose hit ratio is reported */
+	static final int REPORTED_MINUTES = 5;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+	final ProxyShard[] shards;
+
+	/** Where the snapshot is saved and read from */
+	final Path file;
+
+	final int maxURLs;
+	final long intervalMillis;
+	final int concurrency;
+	final int rate;
+
+	/** Takes the snapshots, and the hit ratio of the first minutes */
+	final ScheduledExecutorService scheduler;
+
+	/** Scores of the URLs of the snapshot read on startup, and what became of them */
+	final Map<String, Double> snapshotScores = new HashMap<String, Double>();
+	volatile int total = 0;
+	final AtomicInteger fetched = new AtomicInteger();
+	final AtomicInteger failed = new AtomicInteger();
+	final AtomicInteger skipped = new AtomicInteger();
+	volatile long startedAt = 0;
+	volatile long finishedAt = 0;
+
+	/** Hit ratio of each of the first minutes, and the counts at the end of the last one */
+	final List<String> minuteRatios = Collections.synchronizedList(new ArrayList<String>());
+	long lastRequests = 0;
+	long lastHits = 0;
+
+	/**
+	 * @param shards the shards whose caches are saved and warmed up.
+	 * @param config where the warmup.* settings are read from.
+	 */
+	public CacheWarmer(ProxyShard[] shards, ProxyConfig config) {
+		this.shards = shards;
+		this.file = Paths.get(config.get("warmup.file")).toAbsolutePath();
+		this.maxURLs = config.getInt("warmup.urls");
+		this.intervalMillis = config.getInt("warmup.interval") * 1000L;
+		this.concurrency = config.getInt("warmup.concurrency");
+		this.rate = config.getInt("warmup.rate");
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "cache-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start warming up from the last snapshot, if any, and taking new ones.
+	 */
+	public void start() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				saveSnapshot();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				reportHitRatio();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+
+		// so that a restart, the usual reason to stop, starts from the latest snapshot
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.shutdown();
+				saveSnapshot();
+			}
+		}, "cache-snapshot-on-exit"));
+
+		final List<String> urls = loadSnapshot();
+		if (urls.isEmpty())
+			return;
+		total = urls.size();
+		startedAt = System.currentTimeMillis();
+		logger.log(Level.INFO, "Warming the cache up with " + total + " URLs from " + file);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				warmUp(urls);
+			}
+		}, "cache-warmer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Fetch the given URLs, within the concurrency and rate limits.
+	 */
+	void warmUp(List<String> urls) {
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService fetchers = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "cache-warmer-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final Semaphore slots = new Semaphore(concurrency);
+		long intervalNanos = 1000000000L / rate;
+		long next = System.nanoTime();
+		long lastProgress = System.currentTimeMillis();
+
+		for (final String url : urls) {
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			// no bursts to catch up if fetches were held back by the concurrency limit
+			next = Math.max(next, System.nanoTime()) + intervalNanos;
+
+			slots.acquireUninterruptibly();
+			fetchers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						prefetch(url);
+					} finally {
+						slots.release();
+					}
+				}
+			});
+
+			if (System.currentTimeMillis() - lastProgress >= PROGRESS_MILLIS) {
+				lastProgress = System.currentTimeMillis();
+				logger.log(Level.INFO, "Cache warm-up: " + getProgress());
+			}
+		}
+
+		fetchers.shutdown();
+		try {
+			fetchers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) { }
+		finishedAt = System.currentTimeMillis();
+		logger.log(Level.INFO, "Cache warm-up done: " + getProgress());
+	}
+
+	/**
+	 * Fetch a URL and store the response in every shard, unless they all hold a fresh copy already.
+	 */
+	void prefetch(String url) {
+		long now = System.currentTimeMillis();
+		boolean stale = false;
+		for (ProxyShard shard : shards) {
+			CachedResponse cached = shard.cache.get(url);
+			if (cached == null || !cached.isFresh(now))
+				stale = true;
+		}
+		if (!stale) {
+			skipped.incrementAndGet();
+			return;
+		}
+
+		ProxyShard shard = shards[0];
+		HTTPResponse response = null;
+		try {
+			URL parsed = new URL(url);
+			HTTPRequest request = new HTTPRequest("GET", url, "HTTP/1.1",
+					"Host: " + parsed.getAuthority() + "\r\nConnection: close\r\n");
+			BackendGroup group = shard.routes != null ? shard.routes.route(parsed) : null;
+			if (shard.routes != null && group == null) {
+				// not ours to serve anymore
+				skipped.incrementAndGet();
+				return;
+			}
+			response = group != null
+					? group.exchange(request, null, HTTPJobWorker.EXCLUDED_HEADERS, false, TCPConnections.DROP_IF_TOO_LARGE)
+					: HTTPJobWorker.fetchFromOrigin(shard.connections, parsed, request, null, HTTPJobWorker.EXCLUDED_HEADERS,
+							false, TCPConnections.DROP_IF_TOO_LARGE);
+
+			// responses that don't fit in the in-flight budget are left for clients to fetch
+			if (response == null || !ResponseCache.isCacheable(request, response)) {
+				skipped.incrementAndGet();
+				return;
+			}
+			// the URL keeps its rank in the next snapshots until clients ask for it again
+			now = System.currentTimeMillis();
+			Double score = snapshotScores.get(url);
+			for (ProxyShard target : shards) {
+				CachedResponse entry = new CachedResponse(response, now, request);
+				if (score != null)
+					entry.restoreHits(score / shards.length, now);
+				target.cache.put(url, entry);
+			}
+			fetched.incrementAndGet();
+		} catch (MalformedURLException e) {
+			failed.incrementAndGet();
+		} catch (ProxyException e) {
+			logger.log(Level.FINE, "Couldn't warm " + url + " up: " + e);
+			failed.incrementAndGet();
+		} finally {
+			shard.connections.releaseHTTPResponse(response);
+		}
+	}
+
+	/**
+	 * @return the URLs of the last snapshot, the hottest first, or none if there is no snapshot.
+	 *  Their scores are kept in snapshotScores.
+	 */
+	List<String> loadSnapshot() {
+		List<String> urls = new ArrayList<String>();
+		BufferedReader reader = null;
+		try {
+			reader = Files.newBufferedReader(file, UTF8);
+			String line;
+			while ((line = reader.readLine()) != null && urls.size() < maxURLs) {
+				int tab = line.indexOf('\t');
+				if (tab == -1)
+					continue;
+				String url = line.substring(tab + 1);
+				try {
+					snapshotScores.put(url, Double.parseDouble(line.substring(0, tab)));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				urls.add(url);
+			}
+		} catch (NoSuchFileException e) {
+			logger.log(Level.INFO, "No cache snapshot at " + file + " yet, starting cold");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Couldn't read the cache snapshot " + file + ": " + e);
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException e) { }
+		}
+		return urls;
+	}
+
+	/**
+	 * Save the hottest URLs, as "score&lt;TAB&gt;url" lines, unless the caches are empty.
+	 * The file is replaced at once, so that a crash never leaves half of it.
+	 */
+	void saveSnapshot() {
+		long now = System.currentTimeMillis();
+		final Map<String, Double> scores = new HashMap<String, Double>();
+		for (ProxyShard shard : shards) {
+			for (Map.Entry<String, Double> entry : shard.cache.getHitScores(now).entrySet()) {
+				Double previous = scores.get(entry.getKey());
+				scores.put(entry.getKey(), previous == null ? entry.getValue() : previous + entry.getValue());
+			}
+		}
+		if (scores.isEmpty())
+			return;
+
+		List<String> urls = new ArrayList<String>(scores.keySet());
+		Collections.sort(urls, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Double.compare(scores.get(b), scores.get(a));
+			}
+		});
+
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = Files.newBufferedWriter(temporary, UTF8);
+			for (String url : urls.subList(0, Math.min(maxURLs, urls.size())))
+				writer.write(String.format("%.3f\t%s\n", scores.get(url), url));
+			writer.close();
+			writer = null;
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.log(Level.FINE, "Saved " + Math.min(maxURLs, urls.size()) + " URLs to the cache snapshot");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Couldn't save the cache snapshot to " + file + ": " + e);
+		} finally {
+			try {
+				if (writer != null)
+					writer.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Log the hit ratio of the minute that just ended, for the first REPORTED_MINUTES.
+	 */
+	void reportHitRatio() {
+		if (minuteRatios.size() >= REPORTED_MINUTES)
+			return;
+		long requests = 0, hits = 0;
+		for (ProxyShard shard : shards) {
+			requests += shard.cache.getRequests();
+			hits += shard.cache.getHits();
+		}
+		long minuteRequests = requests - lastRequests;
+		long minuteHits = hits - lastHits;
+		lastRequests = requests;
+		lastHits = hits;
+
+		String ratio = minuteRequests == 0 ? "-" : String.format("%.1f%%", 100.0 * minuteHits / minuteRequests);
+		minuteRatios.add(ratio);
+		logger.log(Level.INFO, "Cache hit ratio in minute " + minuteRatios.size() + " after startup: " + ratio
+				+ " of " + minuteRequests + " requests");
+	}
+
+	/**
+	 * @return how far the warm-up went, eg. "120/500 URLs, 110 fetched, 4 failed, 6 skipped"
+	 */
+	String getProgress() {
+		int done = fetched.get() + failed.get() + skipped.get();
+		String result = done + "/" + total + " URLs, " + fetched.get() + " fetched, " + failed.get() + " failed, "
+				+ skipped.get() + " skipped";
+		if (finishedAt != 0)
+			result += String.format(" in %.1fs", (finishedAt - startedAt) / 1000.0);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		String warmup = total == 0 ? "nothing to do" : (finishedAt == 0 ? "in progress, " : "done, ") + getProgress();
+		return "cache warm-up: " + warmup + "\nhit ratio by minute since start: " + minuteRatios;
+	}
+
+}
@@ -0,0 +1,372 @@
+package webproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Stores an HTTP response along with what is needed to decide
+ * whether it can be served as-is or has to be revalidated.
+ *
+ * @author Amos Wenger
+ */
+public class CachedResponse {
+
+	/** Heuristic freshness is never extended past one day (RFC 7234, 4.2.2) */
+	static final long MAX_HEURISTIC_FRESHNESS = 24L * 3600L * 1000L;
+
+	/** Headers of a 304 that must not overwrite the stored ones */
+	static final String[] NOT_UPDATED_HEADERS = {
+		"Content-Length", "Content-Encoding", "Content-Range", "Transfer-Encoding", "Connection"
+	};
+
+	/** Requests for a URL count half as much after this long, to rank entries by recent popularity */
+	static final double HIT_HALF_LIFE_MILLIS = 10 * 60 * 1000;
+
+	HTTPResponse response;
+	long storedAt;
+	long freshUntil;
+	String etag;
+	String lastModified;
+
+	/** Decayed count of the requests for this URL, as of hitsStamp, see ResponseCache.countRequest */
+	double hits = 0;
+	long hitsStamp;
+
+	/** Request headers the response varies on, and their normalized values in the request it answered, null if absent */
+	String[] varyNames = new String[0];
+	String[] varyValues = new String[0];
+
+	/**
+	 * @param response the response to store.
+	 * @param storedAt when it was received.
+	 * @param request the request it answered, whose headers named by Vary select it.
+	 */
+	public CachedResponse(HTTPResponse response, long storedAt, HTTPRequest request) {
+		this(response, storedAt);
+		String vary = response.getHeaderValue("Vary");
+		if (vary != null && vary.trim().length() != 0) {
+			varyNames = vary.trim().split("\\s*,\\s*");
+			varyValues = new String[varyNames.length];
+			for (int i = 0; i < varyNames.length; i++)
+				varyValues[i] = normalizeHeaderValue(request.getHeaderValue(varyNames[i]));
+		}
+	}
+
+	private CachedResponse(HTTPResponse response, long storedAt) {
+		this.response = response;
+		this.storedAt = storedAt;
+		this.etag = response.getHeaderValue("ETag");
+		this.lastModified = response.getHeaderValue("Last-Modified");
+		this.freshUntil = storedAt + freshnessLifetime(response);
+		this.hitsStamp = storedAt;
+	}
+
+	public HTTPResponse getResponse() {
+		return response;
+	}
+
+	public int getSize() {
+		try {
+			return response.getBytes().length;
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Count a request for this URL, whether it was answered with this response or not.
+	 */
+	void countRequest(long now) {
+		hits = getHitScore(now) + 1;
+		hitsStamp = now;
+	}
+
+	/**
+	 * Carry over the requests counted for the response this one replaces.
+	 */
+	void inheritHits(CachedResponse previous, long now) {
+		hits = previous.getHitScore(now);
+		hitsStamp = now;
+	}
+
+	/**
+	 * Start from the requests counted before a restart, see CacheWarmer.
+	 */
+	void restoreHits(double score, long now) {
+		hits = score;
+		hitsStamp = now;
+	}
+
+	/**
+	 * @return the requests for this URL, those of HIT_HALF_LIFE_MILLIS ago counting half
+	 */
+	double getHitScore(long now) {
+		return hits * Math.pow(0.5, (now - hitsStamp) / HIT_HALF_LIFE_MILLIS);
+	}
+
+	/**
+	 * Check that this response was selected by the same request headers as
+	 * the ones of a new request, the ones it varies on (RFC 7234, 4.1).
+	 *
+	 * @param request the request sent by the client
+	 * @return true if this response may answer the request
+	 */
+	public boolean matchesVary(HTTPRequest request) {
+		for (int i = 0; i < varyNames.length; i++) {
+			String value = normalizeHeaderValue(request.getHeaderValue(varyNames[i]));
+			if (value == null ? varyValues[i] != null : !value.equals(varyValues[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the value with its whitespace trimmed and collapsed, also around commas, or null
+	 */
+	static String normalizeHeaderValue(String value) {
+		if (value == null)
+			return null;
+		return value.trim().replaceAll("\\s*,\\s*", ",").replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * @return true if this response can be served without asking the origin server
+	 */
+	public boolean isFresh(long now) {
+		return now < freshUntil;
+	}
+
+	/**
+	 * @return true if the origin server can be asked whether this response is still valid
+	 */
+	public boolean canRevalidate() {
+		return etag != null || lastModified != null;
+	}
+
+	/**
+	 * @return the conditional headers to add to the upstream request to revalidate this response
+	 */
+	public String getConditionalHeaders() {
+		StringBuffer result = new StringBuffer();
+		if (etag != null)
+			result.append("If-None-Match: " + etag + "\r\n");
+		if (lastModified != null)
+			result.append("If-Modified-Since: " + lastModified + "\r\n");
+		return result.toString();
+	}
+
+	/**
+	 * Check whether the conditional headers of a client request are satisfied
+	 * by this response, ie. the client already holds the same version.
+	 *
+	 * @param request the request sent by the client
+	 * @return true if the client should be answered with a 304
+	 */
+	public boolean isNotModifiedFor(HTTPRequest request) {
+		String ifNoneMatch = request.getHeaderValue("If-None-Match");
+		if (ifNoneMatch != null) {
+			// If-None-Match takes precedence over If-Modified-Since
+			if (etag == null)
+				return false;
+			String[] candidates = ifNoneMatch.split(",");
+			for (String candidate : candidates) {
+				candidate = candidate.trim();
+				if (candidate.equals("*") || weakTag(candidate).equals(weakTag(etag)))
+					return true;
+			}
+			return false;
+		}
+
+		String ifModifiedSince = request.getHeaderValue("If-Modified-Since");
+		if (ifModifiedSince != null && lastModified != null) {
+			long since = parseDate(ifModifiedSince);
+			long modified = parseDate(lastModified);
+			return since != -1 && modified != -1 && modified <= since;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check the If-Range header of a client request: a Range request may only be
+	 * answered with a slice of this response if the client's copy is the same version.
+	 *
+	 * @param request the request sent by the client
+	 * @return true if the Range header of the request applies to this response
+	 */
+	public boolean matchesIfRange(HTTPRequest request) {
+		String ifRange = request.getHeaderValue("If-Range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			// weak validators can't be used for sub-ranges
+			return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+		return lastModified != null && ifRange.equals(lastModified);
+	}
+
+	/**
+	 * @return a 304 response carrying the validators and caching headers of this response
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	public HTTPResponse createNotModifiedResponse() throws ProxyException {
+		StringBuffer result = new StringBuffer();
+		result.append(response.getHTTPVersion() + " 304 Not Modified\r\n");
+		String[] copied = { "Date", "ETag", "Last-Modified", "Cache-Control", "Expires", "Vary" };
+		for (String name : copied) {
+			String value = response.getHeaderValue(name);
+			if (value != null)
+				result.append(name + ": " + value + "\r\n");
+		}
+		result.append("Connection: close\r\n");
+		result.append("\r\n");
+		return new HTTPResponse(result.toString().getBytes());
+	}
+
+	/**
+	 * Build the entry resulting from a successful revalidation: the stored body
+	 * with its headers updated from the 304 sent by the origin server.
+	 *
+	 * @param notModified the 304 response received from the origin server
+	 * @param now the time at which the 304 was received
+	 * @return the refreshed entry
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	public CachedResponse refresh(HTTPResponse notModified, long now) throws ProxyException {
+		StringBuffer headers = new StringBuffer();
+		String stored = response.getHeaders();
+		String updates = notModified.getHeaders();
+
+		// keep the stored headers that the 304 does not override
+		int indexLineStart = 0;
+		int indexLineEnd = stored.indexOf("\r\n", indexLineStart);
+		while (indexLineEnd != -1) {
+			String line = stored.substring(indexLineStart, indexLineEnd + 2);
+			int indexSemiColumn = line.indexOf(":");
+			if (indexSemiColumn == -1 || !isUpdatedBy(line.substring(0, indexSemiColumn).trim(), notModified))
+				headers.append(line);
+			indexLineStart = indexLineEnd + 2;
+			indexLineEnd = stored.indexOf("\r\n", indexLineStart);
+		}
+
+		// and add the ones it sent
+		indexLineStart = 0;
+		indexLineEnd = updates.indexOf("\r\n", indexLineStart);
+		while (indexLineEnd != -1) {
+			String line = updates.substring(indexLineStart, indexLineEnd + 2);
+			int indexSemiColumn = line.indexOf(":");
+			if (indexSemiColumn != -1 && !isNotUpdated(line.substring(0, indexSemiColumn).trim()))
+				headers.append(line);
+			indexLineStart = indexLineEnd + 2;
+			indexLineEnd = updates.indexOf("\r\n", indexLineStart);
+		}
+
+		try {
+			byte[] full = response.getBytes();
+			int bodyOffset = response.getBodyOffset();
+			ByteArrayOutputStream result = new ByteArrayOutputStream(full.length);
+			result.write((response.getHTTPVersion() + " " + response.getStatus() + " " + response.getReason() + "\r\n").getBytes());
+			result.write(headers.toString().getBytes());
+			result.write("\r\n".getBytes());
+			result.write(full, bodyOffset, full.length - bodyOffset);
+			CachedResponse refreshed = new CachedResponse(new HTTPResponse(result.toByteArray()), now);
+			// still selected by the request the stored response answered
+			refreshed.varyNames = varyNames;
+			refreshed.varyValues = varyValues;
+			return refreshed;
+		} catch (IOException e) {
+			throw new ProxyException(e);
+		}
+	}
+
+	private static boolean isUpdatedBy(String headerName, HTTPResponse notModified) {
+		return !isNotUpdated(headerName) && notModified.getHeaderValue(headerName) != null;
+	}
+
+	private static boolean isNotUpdated(String headerName) {
+		for (String name : NOT_UPDATED_HEADERS) {
+			if (name.equalsIgnoreCase(headerName))
+				return true;
+		}
+		return false;
+	}
+
+	private static String weakTag(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+
+	/**
+	 * Compute how long a response can be served without revalidation,
+	 * from its Cache-Control and Expires headers, or heuristically from
+	 * its Last-Modified header.
+	 *
+	 * @param response the response received from the origin server
+	 * @return the freshness lifetime, in milliseconds
+	 */
+	static long freshnessLifetime(HTTPResponse response) {
+		String cacheControl = response.getHeaderValue("Cache-Control");
+		if (cacheControl != null) {
+			String[] directives = cacheControl.toLowerCase().split(",");
+			long maxAge = -1;
+			for (String directive : directives) {
+				directive = directive.trim();
+				if (directive.equals("no-cache"))
+					return 0;
+				if (directive.startsWith("s-maxage=")) {
+					maxAge = parseSeconds(directive.substring(9));
+				} else if (directive.startsWith("max-age=") && maxAge == -1) {
+					maxAge = parseSeconds(directive.substring(8));
+				}
+			}
+			if (maxAge != -1)
+				return maxAge * 1000L;
+		}
+
+		long date = parseDate(response.getHeaderValue("Date"));
+		String expiresValue = response.getHeaderValue("Expires");
+		if (expiresValue != null) {
+			long expires = parseDate(expiresValue);
+			if (expires == -1 || date == -1)
+				return 0;
+			return Math.max(0, expires - date);
+		}
+
+		long modified = parseDate(response.getHeaderValue("Last-Modified"));
+		if (date != -1 && modified != -1 && modified < date)
+			return Math.min((date - modified) / 10, MAX_HEURISTIC_FRESHNESS);
+
+		return 0;
+	}
+
+	private static long parseSeconds(String value) {
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param value an HTTP-date, as found in Date, Expires or Last-Modified headers
+	 * @return the date in milliseconds since the epoch, or -1 if it can't be parsed
+	 */
+	static long parseDate(String value) {
+		if (value == null)
+			return -1;
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			Date date = format.parse(value.trim());
+			return date.getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+}
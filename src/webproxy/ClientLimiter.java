@@ -0,0 +1,277 @@
+package webproxy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits of what a single client address may take from the proxy: open
+ * connections, requests per second, and bandwidth, the last two as token
+ * buckets. All limits can be changed while the proxy runs, 0 meaning unlimited.
+ *
+ * Clients are tracked in a concurrent map, each entry locked on its own, and
+ * entries without connections are dropped once idle for IDLE_MILLIS, so that
+ * the table only holds recent clients. TCPConnections checks the limits as
+ * soon as a connection is accepted, and turns it away with TOO_MANY_REQUESTS
+ * before reading anything from it.
+ *
+ * Throttled responses are slowed down in the worker writing them, so while a
+ * bandwidth limit is set, a client may only have a fraction of the workers
+ * of a shard busy with its connections, whatever client.max.connections says.
+ *
+ * @author Amos Wenger
+ */
+public class ClientLimiter implements ClientLimiterMBean {
+
+	/** Entries without connections are dropped after this long without any */
+	static final long IDLE_MILLIS = 60000;
+
+	/** With a bandwidth limit, a client may have at most this fraction of the workers writing to it */
+	static final int THROTTLED_WORKERS_FRACTION = 4;
+
+	/** Bytes written at once to a client with a bandwidth limit */
+	static final int THROTTLE_SLICE = 8192;
+
+	/** Sent as is to clients over their limits */
+	static final byte[] TOO_MANY_REQUESTS = ("HTTP/1.1 429 Too Many Requests\r\n" +
+			"Content-Type: text/plain\r\n" +
+			"Content-Length: 18\r\n" +
+			"Retry-After: 1\r\n" +
+			"Connection: close\r\n\r\n" +
+			"Too many requests\n").getBytes();
+
+	/**
+	 * A token bucket: up to 'burst' tokens, refilled at 'rate' per second.
+	 */
+	static class Bucket {
+		double tokens;
+		long last = System.nanoTime();
+
+		private void refill(double rate, double burst, long now) {
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+		}
+
+		/**
+		 * @return true if the tokens were there, and were taken.
+		 */
+		boolean tryTake(double count, double rate, double burst) {
+			refill(rate, burst, System.nanoTime());
+			if (tokens < count)
+				return false;
+			tokens -= count;
+			return true;
+		}
+
+		/**
+		 * Take tokens, going into debt if needed.
+		 *
+		 * @return how long to wait for the debt to be paid back, in nanoseconds.
+		 */
+		long take(double count, double rate, double burst) {
+			refill(rate, burst, System.nanoTime());
+			tokens -= count;
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+	}
+
+	/**
+	 * What we know of one client address.
+	 */
+	class Client {
+		final String address;
+		int connections = 0;
+		long lastSeen = System.currentTimeMillis();
+		final Bucket requests = new Bucket();
+		final Bucket bytes = new Bucket();
+
+		Client(String address, int requestsBurst, long bandwidth) {
+			this.address = address;
+			requests.tokens = requestsBurst;
+			bytes.tokens = bandwidth;
+		}
+
+		/**
+		 * Count a connection closed.
+		 */
+		synchronized void disconnect() {
+			connections--;
+			lastSeen = System.currentTimeMillis();
+		}
+
+		/**
+		 * Wait until the bandwidth limit lets us send that many bytes.
+		 */
+		void awaitBandwidth(int count) throws IOException {
+			long bandwidth = ClientLimiter.this.bandwidth;
+			if (bandwidth <= 0)
+				return;
+			long wait;
+			synchronized (this) {
+				// a burst of a second's worth, and at least one slice
+				wait = bytes.take(count, bandwidth, Math.max(bandwidth, THROTTLE_SLICE));
+			}
+			if (wait > 0) {
+				throttledNanos.addAndGet(wait);
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while throttling");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Output stream of a client connection, slowed down to its bandwidth limit.
+	 */
+	static class ThrottledOutputStream extends FilterOutputStream {
+		final Client client;
+
+		ThrottledOutputStream(OutputStream out, Client client) {
+			super(out);
+			this.client = client;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			client.awaitBandwidth(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int slice = Math.min(len, THROTTLE_SLICE);
+				client.awaitBandwidth(slice);
+				out.write(b, off, slice);
+				off += slice;
+				len -= slice;
+			}
+		}
+	}
+
+	final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+
+	volatile int maxConnections = 0;
+	volatile int requestsPerSecond = 0;
+	volatile int requestsBurst = 0;
+	volatile long bandwidth = 0;
+	/** Connections a client may have open at once while a bandwidth limit is set */
+	volatile int maxThrottledConnections = 1;
+
+	volatile long lastSweep = System.currentTimeMillis();
+	final AtomicBoolean sweeping = new AtomicBoolean();
+
+	final AtomicLong rejectedForConnections = new AtomicLong();
+	final AtomicLong rejectedForRate = new AtomicLong();
+	final AtomicLong throttledNanos = new AtomicLong();
+
+	/**
+	 * @param maxConnections connections a client may have open at once
+	 * @param requestsPerSecond requests a client may send per second, on average
+	 * @param requestsBurst requests a client may send at once
+	 * @param bandwidth bytes per second a client may receive
+	 * @param workers worker threads of each shard, which sleep while throttling
+	 */
+	public void configure(int maxConnections, int requestsPerSecond, int requestsBurst, long bandwidth, int workers) {
+		this.maxConnections = maxConnections;
+		this.maxThrottledConnections = Math.max(workers / THROTTLED_WORKERS_FRACTION, 1);
+		this.requestsPerSecond = requestsPerSecond;
+		this.requestsBurst = Math.max(requestsBurst, 1);
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Count a new connection and the request it's about to send, if the client is within its limits.
+	 *
+	 * @param address the IP address of the client.
+	 * @return the client, to pass the connection's output through and to disconnect
+	 *  once it's closed, or null if it should be turned away.
+	 */
+	Client admit(String address) {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep > IDLE_MILLIS && sweeping.compareAndSet(false, true)) {
+			try {
+				sweep(now);
+			} finally {
+				lastSweep = now;
+				sweeping.set(false);
+			}
+		}
+
+		Client client = clients.get(address);
+		if (client == null) {
+			Client created = new Client(address, requestsBurst, bandwidth);
+			client = clients.putIfAbsent(address, created);
+			if (client == null)
+				client = created;
+		}
+
+		synchronized (client) {
+			client.lastSeen = now;
+			int max = maxConnections;
+			// each throttled response holds a worker, don't let one client take them all
+			if (bandwidth > 0 && (max <= 0 || max > maxThrottledConnections))
+				max = maxThrottledConnections;
+			if (max > 0 && client.connections >= max) {
+				rejectedForConnections.incrementAndGet();
+				return null;
+			}
+			int rate = requestsPerSecond;
+			if (rate > 0 && !client.requests.tryTake(1, rate, requestsBurst)) {
+				rejectedForRate.incrementAndGet();
+				return null;
+			}
+			client.connections++;
+		}
+		return client;
+	}
+
+	/**
+	 * Drop the clients that have no connection open and haven't been seen for a while.
+	 * One of their connections may be accepted meanwhile: it then keeps counting
+	 * against the dropped entry, and the client starts over with a new one.
+	 */
+	private void sweep(long now) {
+		Iterator<Client> iter = clients.values().iterator();
+		while (iter.hasNext()) {
+			Client client = iter.next();
+			synchronized (client) {
+				if (client.connections == 0 && now - client.lastSeen > IDLE_MILLIS)
+					iter.remove();
+			}
+		}
+	}
+
+	@Override
+	public int getTrackedClients() {
+		return clients.size();
+	}
+
+	@Override
+	public long getRejectedForConnections() {
+		return rejectedForConnections.get();
+	}
+
+	@Override
+	public long getRejectedForRate() {
+		return rejectedForRate.get();
+	}
+
+	@Override
+	public long getThrottledMillis() {
+		return throttledNanos.get() / 1000000;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("clients tracked: %d, rejected for too many connections: %d, for too many requests: %d, throttled: %dms",
+				getTrackedClients(), getRejectedForConnections(), getRejectedForRate(), getThrottledMillis());
+	}
+
+}
@@ -0,0 +1,31 @@
+package webproxy;
+
+/**
+ * Management interface of ClientLimiter, to see how often clients
+ * hit their limits.
+ *
+ * @author Amos Wenger
+ */
+public interface ClientLimiterMBean {
+
+	/**
+	 * @return the number of client addresses currently tracked
+	 */
+	public int getTrackedClients();
+
+	/**
+	 * @return the number of connections turned away because their client had too many open
+	 */
+	public long getRejectedForConnections();
+
+	/**
+	 * @return the number of connections turned away because their client sent too many requests
+	 */
+	public long getRejectedForRate();
+
+	/**
+	 * @return the total time responses were held back to respect the bandwidth limit, in milliseconds
+	 */
+	public long getThrottledMillis();
+
+}
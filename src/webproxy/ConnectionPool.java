@@ -0,0 +1,121 @@
+package webproxy;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Idle connections to servers that keep them open between requests (peers,
+ * backends), by "host:port". Connections are taken most recently used first,
+ * and the ones idle for too long are closed rather than reused, since the
+ * server may have timed them out.
+ *
+ * @author Amos Wenger
+ */
+public class ConnectionPool {
+
+	/** Idle connections kept open to each server */
+	static final int MAX_IDLE_PER_SERVER = 8;
+
+	/** Pooled connections idle for longer may have been timed out by the server, they aren't reused */
+	static final long MAX_IDLE_MILLIS = 5000;
+
+	/**
+	 * A pooled connection, and since when it's been idle.
+	 */
+	static class IdleConnection {
+		final int cid;
+		final long since;
+
+		IdleConnection(int cid, long since) {
+			this.cid = cid;
+			this.since = since;
+		}
+	}
+
+	final TCPConnections connections;
+
+	/** Idle connections, by server */
+	final Map<String, ArrayDeque<IdleConnection>> idle = new HashMap<String, ArrayDeque<IdleConnection>>();
+
+	final AtomicLong openedConnections = new AtomicLong();
+	final AtomicLong reusedConnections = new AtomicLong();
+
+	/**
+	 * @param connections the connection table the pooled connections are part of
+	 */
+	public ConnectionPool(TCPConnections connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @return a pooled connection to the server that hasn't been idle for too long, or -1.
+	 */
+	int take(String server) {
+		long now = System.currentTimeMillis();
+		while (true) {
+			IdleConnection connection;
+			synchronized (idle) {
+				ArrayDeque<IdleConnection> pool = idle.get(server);
+				connection = pool == null ? null : pool.pollLast();
+			}
+			if (connection == null)
+				return -1;
+			if (now - connection.since < MAX_IDLE_MILLIS) {
+				reusedConnections.incrementAndGet();
+				return connection.cid;
+			}
+			close(connection.cid);
+		}
+	}
+
+	/**
+	 * @return a new connection to the server.
+	 * @throws ProxyException if the server can't be reached.
+	 */
+	int open(String server) throws ProxyException {
+		int colon = server.lastIndexOf(':');
+		int cid = connections.establishConnectionToHTTPServer(server.substring(0, colon),
+				Integer.parseInt(server.substring(colon + 1)));
+		openedConnections.incrementAndGet();
+		return cid;
+	}
+
+	/**
+	 * Pool a connection if it can carry another request and there's room, close it otherwise.
+	 */
+	void giveBack(String server, int cid) throws ProxyException {
+		if (connections.canKeepAlive(cid)) {
+			synchronized (idle) {
+				ArrayDeque<IdleConnection> pool = idle.get(server);
+				if (pool == null) {
+					pool = new ArrayDeque<IdleConnection>();
+					idle.put(server, pool);
+				}
+				if (pool.size() < MAX_IDLE_PER_SERVER) {
+					pool.addLast(new IdleConnection(cid, System.currentTimeMillis()));
+					return;
+				}
+			}
+		}
+		close(cid);
+	}
+
+	void close(int cid) {
+		try {
+			connections.closeConnection(cid);
+		} catch (ProxyException e) { }
+	}
+
+	public long getOpenedConnections() {
+		return openedConnections.get();
+	}
+
+	public long getReusedConnections() {
+		return reusedConnections.get();
+	}
+
+}
@@ -0,0 +1,225 @@
+package webproxy;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Implementation of RequestBuffer that shares workers fairly between clients.
+ *
+ * Each client address gets its own queue, and queues with pending jobs are
+ * served by deficit round-robin, so a client queuing hundreds of downloads only
+ * delays its own. A job costs the expected size of its response (see HTTPJob.getCost),
+ * and each turn credits a client with QUANTUM bytes: a client fetching large
+ * responses gets fewer jobs served per round than one fetching small ones. Jobs are further split in two lanes: cheap ones (HEAD requests,
+ * cache hits) are served ahead of the ones that probably need a full fetch, with
+ * a normal job let through every HIGH_LANE_BURST high-priority ones so that
+ * neither lane starves.
+ *
+ * Queuing and popping are O(1), under a single lock held for a few field updates:
+ * costs are capped at MAX_COST, so a pop goes around the clients at most
+ * MAX_COST / QUANTUM times before one has the credit for its next job.
+ * Queue waits are kept for the MAX_WAIT_CLIENTS clients served most recently.
+ *
+ * @author Amos Wenger
+ */
+public class FairRequestBuffer implements RequestBuffer, FairRequestBufferMBean {
+
+	/** Credit given to a client each time its turn comes, in bytes of expected response */
+	static final int QUANTUM = HTTPJob.DEFAULT_COST;
+
+	/** Highest cost counted for a job, so that a large download waits a few rounds, not hundreds */
+	static final int MAX_COST = 8 * QUANTUM;
+
+	/** Consecutive high-priority jobs served before a normal one gets a turn */
+	static final int HIGH_LANE_BURST = 8;
+
+	/** Clients whose queue waits are kept for the fairness index, the least recently served are dropped */
+	static final int MAX_WAIT_CLIENTS = 1024;
+
+	/**
+	 * Jobs of one client in one lane.
+	 */
+	static class ClientQueue {
+		final String address;
+		final ArrayDeque<HTTPJob> jobs = new ArrayDeque<HTTPJob>();
+		int deficit = 0;
+
+		ClientQueue(String address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Client queues of one priority, and the ones with pending jobs in round-robin order.
+	 */
+	static class Lane {
+		final Map<String, ClientQueue> clients = new HashMap<String, ClientQueue>();
+		final ArrayDeque<ClientQueue> active = new ArrayDeque<ClientQueue>();
+
+		void queue(HTTPJob job) {
+			ClientQueue client = clients.get(job.getClientAddress());
+			if (client == null) {
+				client = new ClientQueue(job.getClientAddress());
+				clients.put(client.address, client);
+				active.addLast(client);
+			}
+			client.jobs.addLast(job);
+		}
+
+		HTTPJob pop() {
+			while (true) {
+				ClientQueue client = active.peekFirst();
+				if (client == null)
+					return null;
+
+				int cost = costOf(client.jobs.peekFirst());
+				if (client.deficit < cost) {
+					client.deficit += QUANTUM;
+					if (client.deficit < cost) {
+						active.addLast(active.pollFirst());
+						continue;
+					}
+				}
+
+				HTTPJob job = client.jobs.pollFirst();
+				client.deficit -= cost;
+				if (client.jobs.isEmpty()) {
+					// idle clients don't keep their queue, nor their credit
+					active.pollFirst();
+					clients.remove(client.address);
+				} else if (client.deficit < costOf(client.jobs.peekFirst())) {
+					// not enough credit left for its next job this round
+					active.addLast(active.pollFirst());
+				}
+				return job;
+			}
+		}
+
+		static int costOf(HTTPJob job) {
+			return Math.min(Math.max(job.getCost(), 1), MAX_COST);
+		}
+
+		boolean isEmpty() {
+			return active.isEmpty();
+		}
+	}
+
+	/**
+	 * Queue wait statistics of one client.
+	 */
+	static class WaitStats {
+		long jobs = 0;
+		long totalWait = 0;
+	}
+
+	final Lane[] lanes = { new Lane(), new Lane() };
+
+	int queuedJobs = 0;
+
+	int highLaneStreak = 0;
+
+	/** Jobs popped and their total queue wait, of all clients */
+	long poppedJobs = 0;
+	long totalWait = 0;
+
+	/** Queue waits of recent clients, in access order */
+	final Map<String, WaitStats> waits = new LinkedHashMap<String, WaitStats>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, WaitStats> eldest) {
+			return size() > MAX_WAIT_CLIENTS;
+		}
+	};
+
+	@Override
+	public synchronized void queue(HTTPJob job) {
+		int priority = job.getPriority() == HTTPJob.PRIORITY_HIGH ? HTTPJob.PRIORITY_HIGH : HTTPJob.PRIORITY_NORMAL;
+		lanes[priority].queue(job);
+		queuedJobs++;
+	}
+
+	@Override
+	public synchronized HTTPJob pop() {
+		Lane high = lanes[HTTPJob.PRIORITY_HIGH];
+		Lane normal = lanes[HTTPJob.PRIORITY_NORMAL];
+
+		HTTPJob job;
+		if (!high.isEmpty() && (highLaneStreak < HIGH_LANE_BURST || normal.isEmpty())) {
+			job = high.pop();
+			highLaneStreak++;
+		} else {
+			job = normal.pop();
+			highLaneStreak = 0;
+		}
+		if (job == null)
+			return null;
+
+		queuedJobs--;
+		long wait = System.nanoTime() - job.getQueuedAt();
+		poppedJobs++;
+		totalWait += wait;
+		WaitStats stats = waits.get(job.getClientAddress());
+		if (stats == null) {
+			stats = new WaitStats();
+			waits.put(job.getClientAddress(), stats);
+		}
+		stats.jobs++;
+		stats.totalWait += wait;
+		return job;
+	}
+
+	@Override
+	public boolean waitsInPop() {
+		return false;
+	}
+
+	@Override
+	public synchronized int getQueuedJobs() {
+		return queuedJobs;
+	}
+
+	@Override
+	public synchronized int getActiveClients() {
+		int count = lanes[HTTPJob.PRIORITY_NORMAL].clients.size();
+		for (String address : lanes[HTTPJob.PRIORITY_HIGH].clients.keySet()) {
+			if (!lanes[HTTPJob.PRIORITY_NORMAL].clients.containsKey(address))
+				count++;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized double getMeanQueueWaitMillis() {
+		return poppedJobs == 0 ? 0 : totalWait / 1e6 / poppedJobs;
+	}
+
+	@Override
+	public synchronized double getQueueWaitFairness() {
+		double sum = 0, sumOfSquares = 0;
+		for (WaitStats stats : waits.values()) {
+			double mean = (double) stats.totalWait / stats.jobs;
+			sum += mean;
+			sumOfSquares += mean * mean;
+		}
+		if (sumOfSquares == 0)
+			return 1;
+		return sum * sum / (waits.size() * sumOfSquares);
+	}
+
+	@Override
+	public synchronized void resetStats() {
+		waits.clear();
+		poppedJobs = 0;
+		totalWait = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("queued jobs: %d from %d clients, mean queue wait: %.2fms, fairness: %.3f",
+				queuedJobs, getActiveClients(), getMeanQueueWaitMillis(), getQueueWaitFairness());
+	}
+
+}
@@ -0,0 +1,37 @@
+package webproxy;
+
+/**
+ * Management interface of FairRequestBuffer, to check that clients
+ * get a fair share of the workers.
+ * 
+ * @author Amos Wenger
+ */
+public interface FairRequestBufferMBean {
+
+	/**
+	 * @return the number of jobs waiting to be processed
+	 */
+	public int getQueuedJobs();
+	
+	/**
+	 * @return the number of clients that have jobs waiting
+	 */
+	public int getActiveClients();
+	
+	/**
+	 * @return the mean time jobs waited in the buffer since the last reset, in milliseconds
+	 */
+	public double getMeanQueueWaitMillis();
+	
+	/**
+	 * @return Jain's fairness index of the mean queue wait of each recent client since the
+	 *  last reset: 1 if all clients waited as long, down to 1/n if one client did all the waiting
+	 */
+	public double getQueueWaitFairness();
+	
+	/**
+	 * Forget the queue wait statistics gathered so far.
+	 */
+	public void resetStats();
+	
+}
@@ -7,12 +7,39 @@ package webproxy;
  */
 public class HTTPJob {
 
+	/** Jobs that are cheap to serve: HEAD requests and cache hits */
+	public static final int PRIORITY_HIGH = 0;
+	
+	/** Jobs that probably need a full fetch from the origin server */
+	public static final int PRIORITY_NORMAL = 1;
+	
+	/** Expected response size of a job nothing is known about, in bytes */
+	public static final int DEFAULT_COST = 16384;
+	
+	/** Expected response size of a job answered with headers only, in bytes */
+	public static final int MIN_COST = 512;
+	
 	HTTPRequest request;
 	int clientCid;
+	String clientAddress;
+	int priority;
+	int cost;
+	long queuedAt = System.nanoTime();
 
 	public HTTPJob(HTTPRequest request, int clientCid) {
+		this(request, clientCid, "", PRIORITY_NORMAL);
+	}
+	
+	public HTTPJob(HTTPRequest request, int clientCid, String clientAddress, int priority) {
+		this(request, clientCid, clientAddress, priority, DEFAULT_COST);
+	}
+	
+	public HTTPJob(HTTPRequest request, int clientCid, String clientAddress, int priority, int cost) {
 		this.request = request;
 		this.clientCid = clientCid;
+		this.clientAddress = clientAddress;
+		this.priority = priority;
+		this.cost = cost;
 	}
 
 	public HTTPRequest getRequest() {
@@ -23,4 +50,32 @@ public class HTTPJob {
 		return clientCid;
 	}
 	
+	/**
+	 * @return the IP address of the client that sent the request, or "" if unknown
+	 */
+	public String getClientAddress() {
+		return clientAddress;
+	}
+	
+	/**
+	 * @return PRIORITY_HIGH or PRIORITY_NORMAL
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * @return the expected size of the response, in bytes, DEFAULT_COST if unknown
+	 */
+	public int getCost() {
+		return cost;
+	}
+	
+	/**
+	 * @return the System.nanoTime() at which the job was created, ie. queued
+	 */
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+	
 }
@@ -6,8 +6,11 @@ import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import webproxy.exceptions.ForbiddenHostException;
 import webproxy.exceptions.HTTPServerException;
 import webproxy.exceptions.ProxyException;
+import webproxy.events.CompleteEvent;
+import webproxy.events.DequeueEvent;
 
 /**
  * Pulls HTTP jobs from the request buffer and processes them.
@@ -20,20 +23,44 @@ public class HTTPJobWorker implements Runnable {
 	
 	RequestBuffer buffer;
 	
+	ResponseCache cache;
+	
+	/** Other proxies sharing their cache with us, or null */
+	PeerGroup peers;
+	
+	/** Backend groups of the reverse-proxy mode, or null */
+	RouteTable routes;
+	
+	/** Headers of the client never forwarded: ours, and the client's conditionals when we send our own */
+	static final String[] EXCLUDED_HEADERS = { PeerGroup.PEER_HEADER };
+	static final String[] REVALIDATION_EXCLUDED_HEADERS = { "If-None-Match", "If-Modified-Since", PeerGroup.PEER_HEADER };
+	
 	Logger logger = Logger.getLogger(getClass().getSimpleName());
 	
-	public HTTPJobWorker(TCPConnections connections, RequestBuffer buffer) {
+	public HTTPJobWorker(TCPConnections connections, RequestBuffer buffer, ResponseCache cache) {
+		this(connections, buffer, cache, null, null);
+	}
+	
+	public HTTPJobWorker(TCPConnections connections, RequestBuffer buffer, ResponseCache cache, PeerGroup peers, RouteTable routes) {
 		this.connections = connections;
 		this.buffer = buffer;
+		this.cache = cache;
+		this.peers = peers;
+		this.routes = routes;
 		new Thread(this).start();
 	}
 
 	@Override
 	public void run() {
 		while(true) {
+			int clientCid = -1;
+			CompleteEvent complete = null;
+			long sentBefore = 0;
 			try {
 				HTTPJob job = buffer.pop();
 				if(job == null) {
+					if (buffer.waitsInPop())
+						continue;
 					// sleep a bit and try again
 					try {
 						Thread.sleep(100L + new Random().nextLong() % 100L);
@@ -42,33 +69,230 @@ public class HTTPJobWorker implements Runnable {
 				}
 				
 				HTTPRequest request = job.getRequest();
-				int clientCid = job.getClientCid();
+				clientCid = job.getClientCid();
+				
+				DequeueEvent dequeue = new DequeueEvent();
+				if (dequeue.shouldCommit()) {
+					dequeue.cid = clientCid;
+					dequeue.host = request.getHeaderValue("Host");
+					dequeue.queueTime = System.nanoTime() - job.getQueuedAt();
+					dequeue.commit();
+				}
+				complete = new CompleteEvent();
+				complete.begin();
+				if (complete.isEnabled()) {
+					complete.cid = clientCid;
+					complete.method = request.getMethod();
+					complete.host = request.getHeaderValue("Host");
+					complete.url = request.getURL();
+					complete.source = "none";
+					sentBefore = connections.getBytesSent(clientCid);
+				}
 				
 				try {
-					URL url = new URL(request.getURL());
+					// requests sent to us as a reverse proxy only have a path, the host is in the headers
+					String absoluteURL = request.getAbsoluteURL();
+					URL url = new URL(absoluteURL);
 					logger.log(Level.FINEST, "request URL = " + url.getPath() + " on host " + url.getHost()
 							+ ":" + url.getPort() + " (raw = " + request.getURL()+ ")");
 					
-					int requestPort = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
-					try {
-						int serverCid = connections.establishConnectionToHTTPServer(url.getHost(), requestPort);
-						
-						connections.sendHTTPRequest(serverCid, new HTTPRequest(request.getMethod(), url.getFile(), request.getHTTPVersion(), request.getHeaders()));
-						connections.sendHTTPRequest(serverCid, request);
-						HTTPResponse response = connections.getHTTPResponse(serverCid);
-						logger.log(Level.FINEST, "response = " + response.StatusLineAndHeaders());
-						connections.sendHTTPResponse(clientCid, response);
-					} catch (HTTPServerException e) {
-						connections.sendHTTPResponse(clientCid, new HTTPTextResponse("Unknown host: " + url.getHost()));
+					boolean isHead = request.getMethod().equalsIgnoreCase("HEAD");
+					BackendGroup group = routes != null ? routes.route(url) : null;
+					long now = System.currentTimeMillis();
+					// a variant selected by other request headers is as good as none
+					CachedResponse cached = cache.get(absoluteURL, request);
+					boolean hit = false;
+					if (cached != null && cached.isFresh(now) && !isNoCache(request)) {
+						logger.log(Level.FINEST, "cache hit for " + absoluteURL);
+						sendCachedResponse(clientCid, request, cached);
+						complete.source = "cache";
+						hit = true;
+					} else if (cached == null && peers != null && fetchFromPeer(clientCid, request, job.getClientAddress())) {
+						logger.log(Level.FINEST, "fetched " + absoluteURL + " from a peer");
+						complete.source = "peer";
+					} else if (group == null && routes != null && request.getURL().startsWith("/")) {
+						// sent to us as a reverse proxy, for a site we don't serve
+						connections.sendHTTPResponse(clientCid, HTTPResponse.createNotFoundResponse());
+					} else {
+						// if we hold a stale copy, ask the server whether it's still valid
+						boolean revalidating = !isHead && cached != null && cached.canRevalidate();
+						String extraHeaders = revalidating ? cached.getConditionalHeaders() : null;
+						String[] excludedHeaders = revalidating ? REVALIDATION_EXCLUDED_HEADERS : EXCLUDED_HEADERS;
+						// Full responses that don't fit in the memory budget are streamed to the client,
+						// a 304 to our revalidation never is, and has no body to buffer.
+						int relayCid = clientCid;
+						complete.source = group != null ? "backend" : "origin";
+						try {
+							HTTPResponse response = group != null
+									? group.exchange(request, extraHeaders, excludedHeaders, isHead, relayCid)
+									: fetchFromOrigin(connections, url, request, extraHeaders, excludedHeaders, isHead, relayCid);
+							
+							try {
+								if (response == null) {
+									logger.log(Level.FINEST, "streamed " + absoluteURL + ", " + connections.getMemoryBudget());
+								} else if (revalidating && "304".equals(response.getStatus())) {
+									logger.log(Level.FINEST, "revalidated " + absoluteURL);
+									cached = cached.refresh(response, System.currentTimeMillis());
+									cache.put(absoluteURL, cached);
+									sendCachedResponse(clientCid, request, cached);
+								} else {
+									logger.log(Level.FINEST, "response = " + response.StatusLineAndHeaders());
+									if (ResponseCache.isCacheable(request, response)) {
+										cache.put(absoluteURL, new CachedResponse(response, now, request));
+									} else if (cached != null && !isHead && isReplacement(response)) {
+										// a HEAD has no body to replace the stored one with, it mustn't drop it either
+										cache.remove(absoluteURL);
+									}
+									connections.sendHTTPResponse(clientCid, response);
+								}
+							} finally {
+								connections.releaseHTTPResponse(response);
+							}
+						} catch (ForbiddenHostException e) {
+							complete.source = "none";
+							logger.log(Level.WARNING, e.getMessage() + ", asked for by " + job.getClientAddress());
+							connections.sendHTTPResponse(clientCid, HTTPResponse.createForbiddenResponse());
+						} catch (HTTPServerException e) {
+							complete.source = "none";
+							if (group == null)
+								connections.sendHTTPResponse(clientCid, new HTTPTextResponse("Unknown host: " + url.getHost()));
+							else if (!connections.hasRelayed(clientCid))
+								connections.sendHTTPResponse(clientCid, HTTPResponse.createBadGatewayResponse());
+						}
 					}
+					cache.countRequest(absoluteURL, hit, System.currentTimeMillis());
 				} catch (MalformedURLException e) {
 					connections.sendHTTPResponse(clientCid, new HTTPTextResponse("Malformed url: " + request.getURL()));
 				}
-				connections.closeConnection(clientCid);
+				commitCompleteEvent(complete, clientCid, sentBefore);
+				complete = null;
+				if (peers != null)
+					peers.finishExchange(clientCid, request, job.getClientAddress());
+				else
+					connections.closeConnection(clientCid);
 			} catch (ProxyException e) {
 				e.printStackTrace();
+				if (complete != null) {
+					complete.source = "none";
+					commitCompleteEvent(complete, clientCid, sentBefore);
+				}
+				// don't leave the client waiting, nor counting against its connection limit
+				if (clientCid != -1) {
+					try {
+						connections.closeConnection(clientCid);
+					} catch (ProxyException ce) { }
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record how the handling of a request went, once the response was sent.
+	 */
+	private void commitCompleteEvent(CompleteEvent event, int clientCid, long sentBefore) {
+		event.end();
+		if (event.shouldCommit()) {
+			try {
+				event.bytesSent = connections.getBytesSent(clientCid) - sentBefore;
+			} catch (ProxyException e) {
+				// closed already, after an error
 			}
+			event.commit();
+		}
+	}
+
+	/**
+	 * Send a request to the server named in its URL, over a new connection, and read the response.
+	 * Also used to warm the cache up, see CacheWarmer.
+	 * 
+	 * @param extraHeaders header lines to add to the request, or null.
+	 * @param excludedHeaders the names of the received headers to leave out.
+	 * @param isHead true if only the headers of the response should be read.
+	 * @param relayCid the connection to stream the response to if it can't be buffered,
+	 *  TCPConnections.DROP_IF_TOO_LARGE, or -1.
+	 * @return the response, or null if it was streamed to relayCid or dropped.
+	 * @throws ForbiddenHostException if the server is one browsers may not reach through the proxy.
+	 * @throws HTTPServerException if the server can't be reached.
+	 */
+	static HTTPResponse fetchFromOrigin(TCPConnections connections, URL url, HTTPRequest request,
+			String extraHeaders, String[] excludedHeaders, boolean isHead, int relayCid) throws ProxyException {
+		int requestPort = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		int serverCid = connections.establishConnectionToOrigin(url.getHost(), requestPort);
+		try {
+			connections.sendHTTPRequest(serverCid, request.toOriginFormBuffers(extraHeaders, excludedHeaders));
+			// responses to HEAD have no body: release the server as soon as the headers are in.
+			return isHead ? connections.getHTTPResponseHead(serverCid) : connections.getHTTPResponse(serverCid, relayCid);
+		} finally {
+			connections.closeConnection(serverCid);
+		}
+	}
+
+	/**
+	 * Answer a client with the response of the peer owning the URL, if it isn't us.
+	 * 
+	 * @return true if the client was answered, false if the origin server should be asked instead.
+	 */
+	private boolean fetchFromPeer(int clientCid, HTTPRequest request, String clientAddress) throws ProxyException {
+		String owner = peers.getOwner(request, clientAddress);
+		if (owner == null)
+			return false;
+		
+		HTTPResponse response;
+		try {
+			response = peers.fetch(owner, request, clientCid);
+		} catch (ProxyException e) {
+			logger.log(Level.FINE, "peer " + owner + " couldn't answer for " + request.getAbsoluteURL() + ": " + e);
+			// part of a response may have been streamed already, don't send another
+			return connections.hasRelayed(clientCid);
+		}
+		try {
+			if (response != null)
+				connections.sendHTTPResponse(clientCid, response);
+		} finally {
+			connections.releaseHTTPResponse(response);
+		}
+		return true;
+	}
+
+	/**
+	 * Answer a client from a stored response: with a 304 if its own conditional
+	 * headers show it already has this version, with the headers only for HEAD,
+	 * with the requested slices for Range, with the full response otherwise.
+	 */
+	private void sendCachedResponse(int clientCid, HTTPRequest request, CachedResponse cached) throws ProxyException {
+		if (cached.isNotModifiedFor(request)) {
+			connections.sendHTTPResponse(clientCid, cached.createNotModifiedResponse());
+		} else if (request.getMethod().equalsIgnoreCase("HEAD")) {
+			connections.sendHTTPResponse(clientCid, cached.getResponse().withoutBody());
+		} else {
+			HTTPResponse response = null;
+			String range = request.getHeaderValue("Range");
+			if (range != null && cached.matchesIfRange(request))
+				response = HTTPRangeResponse.create(cached.getResponse(), range);
+			connections.sendHTTPResponse(clientCid, response != null ? response : cached.getResponse());
+		}
+	}
+
+	/**
+	 * @return true if the response means a stored copy of the same URL is obsolete
+	 */
+	private static boolean isReplacement(HTTPResponse response) {
+		String status = response.getStatus();
+		return "200".equals(status) || "404".equals(status) || "410".equals(status);
+	}
+
+	/**
+	 * @return true if the client asked not to be served a stored response without revalidation
+	 */
+	private static boolean isNoCache(HTTPRequest request) {
+		String cacheControl = request.getHeaderValue("Cache-Control");
+		if (cacheControl != null) {
+			String lower = cacheControl.toLowerCase();
+			if (lower.contains("no-cache") || lower.contains("max-age=0"))
+				return true;
 		}
+		String pragma = request.getHeaderValue("Pragma");
+		return pragma != null && pragma.toLowerCase().contains("no-cache");
 	}
 
 }
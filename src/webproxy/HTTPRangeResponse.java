@@ -0,0 +1,194 @@
+package webproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * A 206 Partial Content response sliced out of a full stored response.
+ * The body is made of segments pointing into the stored byte array,
+ * so serving a range never copies the whole object.
+ *
+ * @author Amos Wenger
+ */
+public class HTTPRangeResponse extends HTTPResponse {
+
+	/** Requests asking for more ranges than that are served the full response */
+	static final int MAX_RANGES = 16;
+
+	static final String BOUNDARY = "WEBPROXY_BYTERANGES";
+
+	/** Headers of the full response that don't describe the partial one */
+	static final String[] REPLACED_HEADERS = { "Content-Length", "Content-Range", "Transfer-Encoding" };
+
+	/** Segments of the body: source arrays, with the offset and length of each slice */
+	final List<byte[]> arrays = new ArrayList<byte[]>();
+	final List<int[]> slices = new ArrayList<int[]>();
+
+	private HTTPRangeResponse(byte[] head) throws ProxyException {
+		super(head);
+	}
+
+	private void addSegment(byte[] array, int offset, int length) {
+		arrays.add(array);
+		slices.add(new int[] { offset, length });
+	}
+
+	private long getBodyLength() {
+		long length = 0;
+		for (int[] slice : slices)
+			length += slice[1];
+		return length;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		super.writeTo(out);
+		for (int i = 0; i < arrays.size(); i++) {
+			int[] slice = slices.get(i);
+			out.write(arrays.get(i), slice[0], slice[1]);
+		}
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		writeTo(result);
+		return result.toByteArray();
+	}
+
+	/**
+	 * Answer a Range request from a full stored response.
+	 *
+	 * @param full the full (200) response
+	 * @param rangeHeader the value of the Range header sent by the client
+	 * @return the 206 (or 416) response, or null if the Range header should be
+	 *  ignored and the full response served instead.
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	public static HTTPResponse create(HTTPResponse full, String rangeHeader) throws ProxyException {
+		// ranges are of the decoded body, which a transfer coding like gzip hides
+		if (full.getHeaderValue("Transfer-Encoding") != null)
+			return null;
+		byte[] content;
+		try {
+			content = full.getBytes();
+		} catch (IOException e) {
+			throw new ProxyException(e);
+		}
+		int bodyOffset = full.getBodyOffset();
+		int totalLength = content.length - bodyOffset;
+
+		List<int[]> ranges = parseRanges(rangeHeader, totalLength);
+		if (ranges == null)
+			return null;
+
+		if (ranges.isEmpty()) {
+			String response = full.getHTTPVersion() + " 416 Requested Range Not Satisfiable\r\n" +
+					"Content-Range: bytes */" + totalLength + "\r\n" +
+					"Content-Length: 0\r\n" +
+					"Connection: close\r\n\r\n";
+			return new HTTPResponse(response.getBytes());
+		}
+
+		StringBuffer head = new StringBuffer();
+		head.append(full.getHTTPVersion() + " 206 Partial Content\r\n");
+
+		if (ranges.size() == 1) {
+			int[] range = ranges.get(0);
+			int length = range[1] - range[0] + 1;
+			head.append(full.getHeadersWithout(REPLACED_HEADERS));
+			head.append("Content-Range: bytes " + range[0] + "-" + range[1] + "/" + totalLength + "\r\n");
+			head.append("Content-Length: " + length + "\r\n\r\n");
+
+			HTTPRangeResponse response = new HTTPRangeResponse(head.toString().getBytes());
+			response.addSegment(content, bodyOffset + range[0], length);
+			return response;
+		}
+
+		// several ranges: multipart/byteranges, each part pointing into the stored body
+		String contentType = full.getHeaderValue("Content-Type");
+		List<byte[]> partHeads = new ArrayList<byte[]>();
+		for (int[] range : ranges) {
+			String partHead = "\r\n--" + BOUNDARY + "\r\n" +
+					(contentType != null ? "Content-Type: " + contentType + "\r\n" : "") +
+					"Content-Range: bytes " + range[0] + "-" + range[1] + "/" + totalLength + "\r\n\r\n";
+			partHeads.add(partHead.getBytes());
+		}
+		byte[] end = ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
+
+		long length = end.length;
+		for (int i = 0; i < ranges.size(); i++)
+			length += partHeads.get(i).length + ranges.get(i)[1] - ranges.get(i)[0] + 1;
+
+		String[] replaced = { "Content-Length", "Content-Range", "Content-Type", "Transfer-Encoding" };
+		head.append(full.getHeadersWithout(replaced));
+		head.append("Content-Type: multipart/byteranges; boundary=" + BOUNDARY + "\r\n");
+		head.append("Content-Length: " + length + "\r\n\r\n");
+
+		HTTPRangeResponse response = new HTTPRangeResponse(head.toString().getBytes());
+		for (int i = 0; i < ranges.size(); i++) {
+			int[] range = ranges.get(i);
+			byte[] partHead = partHeads.get(i);
+			response.addSegment(partHead, 0, partHead.length);
+			response.addSegment(content, bodyOffset + range[0], range[1] - range[0] + 1);
+		}
+		response.addSegment(end, 0, end.length);
+		assert response.getBodyLength() == length;
+		return response;
+	}
+
+	/**
+	 * Parse a Range header against a body of known length.
+	 *
+	 * @return the satisfiable ranges, as inclusive [first, last] pairs (empty if none is),
+	 *  or null if the header is malformed or asks for too many ranges.
+	 */
+	static List<int[]> parseRanges(String rangeHeader, int totalLength) {
+		String value = rangeHeader.trim();
+		if (!value.toLowerCase().startsWith("bytes="))
+			return null;
+
+		String[] specs = value.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		List<int[]> ranges = new ArrayList<int[]>();
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash == -1)
+					return null;
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+
+				long start, stop;
+				if (first.length() == 0) {
+					// suffix range: the last N bytes
+					long suffix = Long.parseLong(last);
+					if (suffix == 0)
+						continue;
+					start = Math.max(0, totalLength - suffix);
+					stop = totalLength - 1;
+				} else {
+					start = Long.parseLong(first);
+					stop = last.length() == 0 ? totalLength - 1 : Math.min(Long.parseLong(last), totalLength - 1);
+					if (last.length() != 0 && Long.parseLong(last) < start)
+						return null;
+				}
+
+				if (start < totalLength && start <= stop)
+					ranges.add(new int[] { (int) start, (int) stop });
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+
+}
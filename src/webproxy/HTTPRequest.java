@@ -1,5 +1,14 @@
 package webproxy;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import webproxy.exceptions.NotImplementedException;
+import webproxy.exceptions.ProxyException;
+
 /**
  * This class models an HTTP request.
  *
@@ -11,6 +20,24 @@ public class HTTPRequest {
 	private String httpVersion;
 	private String headers;
 	
+	/** Hop-by-hop headers, never forwarded: we close connections after each interaction */
+	static final String[] CONNECTION_HEADERS = { "Connection", "Keep-Alive", "Proxy-Connection" };
+	
+	static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	
+	static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes();
+	static final byte[] CRLF = "\r\n".getBytes();
+	static final byte[] ROOT = "/".getBytes();
+	
+	/** Bytes of the request as received, if it was parsed from the network */
+	private byte[] raw;
+	
+	/** Offsets in raw of the method, URL and version in the request line */
+	private int urlStart, urlEnd, requestLineEnd;
+	
+	/** Offset and length in raw of each forwarded header line, CRLF included */
+	private int[] headerLines;
+	
 	/**
 	 * Sole constructor.
 	 * 
@@ -26,6 +53,220 @@ public class HTTPRequest {
 		this.headers = headers;
 	}
 		
+	/**
+	 * Parse a request received from a browser, keeping track of where its parts
+	 *  are in the received bytes so they can be forwarded without copies.
+	 *  Connection-related headers are left out, since we close connections after each interaction.
+	 * 
+	 * @param raw the bytes received, up to and including the empty line ending the headers.
+	 * @param length the number of bytes received.
+	 * @return the parsed request.
+	 * @throws ProxyException if the request is not well-formed.
+	 * @throws NotImplementedException if the request does not fullfills assumptions.
+	 */
+	static HTTPRequest parse(byte[] raw, int length) throws ProxyException, NotImplementedException {
+		int lineEnd = indexOf(raw, (byte) '\n', 0, length);
+		if (lineEnd <= 0)
+			throw new ProxyException("Problem while reading a request!");
+		
+		// Parse the method
+		int methodEnd = indexOf(raw, (byte) ' ', 0, lineEnd);
+		if (methodEnd <= 0)
+			throw new ProxyException("Problem while reading a request!");
+		String method = latin1(raw, 0, methodEnd);
+		if ((!method.toUpperCase().equals("GET")) &&
+			(!method.toUpperCase().equals("HEAD")))
+			throw new NotImplementedException(method);
+		
+		// Parse the URL
+		int urlStart = methodEnd + 1;
+		int urlEnd = indexOf(raw, (byte) ' ', urlStart, lineEnd);
+		if (urlEnd == -1)
+			throw new ProxyException("Problem while reading a request!");
+		String url = latin1(raw, urlStart, urlEnd - urlStart);
+		
+		// Parse the Version
+		String httpVersion = latin1(raw, urlEnd + 1, lineEnd - urlEnd - 1).trim();
+		if (!httpVersion.endsWith("1.1"))
+			throw new NotImplementedException(httpVersion);
+		
+		// Parse the headers
+		StringBuffer headers = new StringBuffer();
+		List<Integer> lines = new ArrayList<Integer>();
+		int lineStart = lineEnd + 1;
+		while (lineStart < length) {
+			lineEnd = indexOf(raw, (byte) '\n', lineStart, length);
+			if (lineEnd == -1)
+				lineEnd = length - 1;
+			int contentEnd = lineEnd > lineStart && raw[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+			if (contentEnd == lineStart)
+				break;
+			
+			int colon = indexOf(raw, (byte) ':', lineStart, contentEnd);
+			String line = latin1(raw, lineStart, contentEnd - lineStart);
+			if (colon == -1 || !isConnectionHeader(line.substring(0, colon - lineStart).trim())) {
+				headers.append(line + "\r\n");
+				lines.add(lineStart);
+				lines.add(lineEnd + 1 - lineStart);
+			}
+			lineStart = lineEnd + 1;
+		}
+		
+		// Add an header specifying that connection must be closed after each interaction
+		headers.append("Connection: close\r\n");
+		
+		HTTPRequest request = new HTTPRequest(method, url, httpVersion, headers.toString());
+		request.raw = raw;
+		request.urlStart = urlStart;
+		request.urlEnd = urlEnd;
+		request.requestLineEnd = indexOf(raw, (byte) '\n', 0, length) + 1;
+		request.headerLines = new int[lines.size()];
+		for (int i = 0; i < request.headerLines.length; i++)
+			request.headerLines[i] = lines.get(i);
+		return request;
+	}
+	
+	/**
+	 * Return the request to send to the origin server, as buffers to be written in a single
+	 *  gathering write: the request line with the URL in origin-form (path and query only),
+	 *  the headers received from the browser, and the given extra headers.
+	 *  Unless the request was built by hand, all but the extra headers are slices of the
+	 *  bytes received, so nothing is copied.
+	 * 
+	 * @param extraHeaders header lines to add, CRLF included, or null.
+	 * @param excludedHeaders the names of the received headers to leave out.
+	 * @return the buffers making up the request.
+	 */
+	public ByteBuffer[] toOriginFormBuffers(String extraHeaders, String... excludedHeaders) {
+		return toOriginFormBuffers(false, extraHeaders, excludedHeaders);
+	}
+	
+	/**
+	 * Same as above, optionally without asking the server to close the connection
+	 *  after answering, for connections that are pooled.
+	 * 
+	 * @param keepAlive true to leave out "Connection: close".
+	 * @param extraHeaders header lines to add, CRLF included, or null.
+	 * @param excludedHeaders the names of the received headers to leave out.
+	 * @return the buffers making up the request.
+	 */
+	public ByteBuffer[] toOriginFormBuffers(boolean keepAlive, String extraHeaders, String... excludedHeaders) {
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		
+		if (raw == null) {
+			// built by hand, there are no received bytes to slice
+			String path = getOriginFormURL();
+			String kept = keepAlive ? getHeadersWithout(with(excludedHeaders, "Connection")) : getHeadersWithout(excludedHeaders);
+			String result = method + " " + path + " " + httpVersion + "\r\n" + kept
+					+ (extraHeaders == null ? "" : extraHeaders) + "\r\n";
+			return new ByteBuffer[] { ByteBuffer.wrap(result.getBytes()) };
+		}
+		
+		// Request line: method, path and version sliced out of the received one
+		int pathStart = originFormStart();
+		buffers.add(ByteBuffer.wrap(raw, 0, urlStart));
+		if (pathStart == -1)
+			buffers.add(ByteBuffer.wrap(ROOT));
+		else
+			buffers.add(ByteBuffer.wrap(raw, pathStart, urlEnd - pathStart));
+		buffers.add(ByteBuffer.wrap(raw, urlEnd, requestLineEnd - urlEnd));
+		
+		for (int i = 0; i < headerLines.length; i += 2) {
+			int offset = headerLines[i];
+			int length = headerLines[i + 1];
+			if (excludedHeaders.length == 0 || !isHeaderNamed(offset, length, excludedHeaders))
+				buffers.add(ByteBuffer.wrap(raw, offset, length));
+		}
+		if (!keepAlive)
+			buffers.add(ByteBuffer.wrap(CONNECTION_CLOSE));
+		if (extraHeaders != null && extraHeaders.length() != 0)
+			buffers.add(ByteBuffer.wrap(extraHeaders.getBytes()));
+		buffers.add(ByteBuffer.wrap(CRLF));
+		
+		return buffers.toArray(new ByteBuffer[buffers.size()]);
+	}
+	
+	// The given header names, plus one
+	private static String[] with(String[] names, String name) {
+		String[] result = Arrays.copyOf(names, names.length + 1);
+		result[names.length] = name;
+		return result;
+	}
+	
+	/**
+	 * Return the url attached to the request in absolute form, even if it was
+	 *  received in origin-form, as sent to a reverse proxy: the host is then
+	 *  taken from the Host header.
+	 * 
+	 * @return the url with scheme and host.
+	 */
+	public String getAbsoluteURL() {
+		if (!url.startsWith("/"))
+			return url;
+		String host = getHeaderValue("Host");
+		return host == null ? url : "http://" + host + url;
+	}
+	
+	/**
+	 * Return the url attached to the request in origin-form, ie. without scheme and host.
+	 * 
+	 * @return the path and query of the url.
+	 */
+	public String getOriginFormURL() {
+		if (url.startsWith("/"))
+			return url;
+		int scheme = url.indexOf("://");
+		int slash = url.indexOf('/', scheme == -1 ? 0 : scheme + 3);
+		return slash == -1 ? "/" : url.substring(slash);
+	}
+	
+	// Offset in raw where the path of the URL starts, or -1 if it has none
+	private int originFormStart() {
+		int start = urlStart;
+		if (raw[start] == '/')
+			return start;
+		for (int i = start; i + 2 < urlEnd; i++) {
+			if (raw[i] == ':' && raw[i + 1] == '/' && raw[i + 2] == '/') {
+				start = i + 3;
+				break;
+			}
+		}
+		int slash = indexOf(raw, (byte) '/', start, urlEnd);
+		return slash;
+	}
+	
+	private boolean isHeaderNamed(int offset, int length, String[] names) {
+		int colon = indexOf(raw, (byte) ':', offset, offset + length);
+		if (colon == -1)
+			return false;
+		String name = latin1(raw, offset, colon - offset).trim();
+		for (String candidate : names) {
+			if (candidate.equalsIgnoreCase(name))
+				return true;
+		}
+		return false;
+	}
+	
+	private static boolean isConnectionHeader(String name) {
+		for (String candidate : CONNECTION_HEADERS) {
+			if (candidate.equalsIgnoreCase(name))
+				return true;
+		}
+		return false;
+	}
+	
+	private static int indexOf(byte[] bytes, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b)
+				return i;
+		}
+		return -1;
+	}
+	
+	private static String latin1(byte[] bytes, int offset, int length) {
+		return new String(bytes, offset, length, LATIN1);
+	}
+	
 	/**
 	 * Return the method attached to the request.
 	 * 
@@ -35,6 +276,18 @@ public class HTTPRequest {
 		return this.method;
 	}
 	
+	/**
+	 * Tell whether sending the request several times has the same effect as
+	 * sending it once (RFC 7231, 4.2.2), so that it may be sent again after a failure.
+	 * 
+	 * @return true if the method of the request is idempotent.
+	 */
+	public boolean isIdempotent() {
+		String upper = method.toUpperCase();
+		return upper.equals("GET") || upper.equals("HEAD") || upper.equals("PUT") || upper.equals("DELETE")
+				|| upper.equals("OPTIONS") || upper.equals("TRACE");
+	}
+	
 	/**
 	 * Return the url attached to the request.
 	 * 
@@ -53,6 +306,50 @@ public class HTTPRequest {
 		return this.httpVersion;
 	}
 
+	/**
+	 * Return all the headers attached to the request.
+	 * 
+	 * @return all the headers attached to the request.
+	 */
+	public String getHeaders() {
+		return this.headers;
+	}
+	
+	/**
+	 * Return the headers attached to the request, minus the ones identified
+	 * by the names passed in parameter.
+	 * 
+	 * @param headerNames the names of the headers to leave out.
+	 * @return the remaining headers.
+	 */
+	public String getHeadersWithout(String... headerNames) {
+		StringBuffer result = new StringBuffer();
+		int indexLineStart = 0;
+		int indexLineEnd = headers.indexOf("\r\n", indexLineStart);
+		
+		while (indexLineEnd != -1) {
+			String line = headers.substring(indexLineStart, indexLineEnd + 2);
+			int indexSemiColumn = line.indexOf(":");
+			boolean keep = true;
+			if (indexSemiColumn != -1) {
+				String lineHeader = line.substring(0, indexSemiColumn).trim();
+				for (String headerName : headerNames) {
+					if (lineHeader.equalsIgnoreCase(headerName)) {
+						keep = false;
+						break;
+					}
+				}
+			}
+			if (keep)
+				result.append(line);
+			
+			indexLineStart = indexLineEnd + 2;
+			indexLineEnd = headers.indexOf("\r\n", indexLineStart);
+		}
+		
+		return result.toString();
+	}
+
 	/**
 	 * Return the value of the header identified by the name passed in parameter.
 	 * 
@@ -4,6 +4,9 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import webproxy.exceptions.ProxyException;
 
@@ -20,6 +23,9 @@ public class HTTPResponse {
 
 	private byte[] fullContent;
 
+	/** Bytes of the in-flight memory budget held by this response, see TCPConnections */
+	long reservedBytes = 0;
+
 	/**
 	 * The HTTP response returned by this method should be sent as an
 	 * an answer to the browser when the request HTTP server cannot be reached.
@@ -44,6 +50,52 @@ public class HTTPResponse {
 		return new HTTPResponse(response.getBytes());
 	}
 	
+	/**
+	 * The HTTP response returned by this method should be sent as an
+	 * an answer to the browser when no backend could answer a request
+	 * in reverse-proxy mode.
+	 * 
+	 * @return HTTP response corresponding to failing backends
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	static HTTPResponse createBadGatewayResponse() throws ProxyException {
+		return createErrorResponse("502 Bad Gateway", "No backend could answer the request.");
+	}
+	
+	/**
+	 * The HTTP response returned by this method should be sent as an
+	 * an answer of a request no route matches in reverse-proxy mode.
+	 * 
+	 * @return HTTP response corresponding to an unknown URL
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	static HTTPResponse createNotFoundResponse() throws ProxyException {
+		return createErrorResponse("404 Not Found", "The requested URL isn't served here.");
+	}
+	
+	/**
+	 * @param status the status code and reason phrase, eg. "404 Not Found".
+	 * @param message the sentence explaining the error on the page.
+	 * @return an HTTP response with a small HTML page showing the error, closing the connection.
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	private static HTTPResponse createErrorResponse(String status, String message) throws ProxyException {
+		String content = "<html><head>\n" +
+				"<title>" + status + "</title>\n" +
+				"</head><body>\n" +
+				"<h1>" + status + "</h1>\n" +
+				"<p>" + message + "</p>\n" +
+				"<hr>\n" +
+				"</body></html>\n";
+		String response = "HTTP/1.1 " + status + "\r\n" +
+				"Content-Length: " + content.getBytes().length + "\r\n" +
+				"Connection: close\r\n" +
+				"Content-Type: text/html; charset=iso-8859-1\r\n\r\n" +
+				content;
+
+		return new HTTPResponse(response.getBytes());
+	}
+	
 	/**
 	 * The HTTP response returned by this method should be sent as an
 	 * an answer of a request accessing a forbidden URL.
@@ -191,6 +243,126 @@ public class HTTPResponse {
 		return null;
 	}
 
+	/**
+	 * Return all the headers attached to the response.
+	 * 
+	 * @return all the headers attached to the response.
+	 */
+	public String getHeaders() {
+		return this.headers;
+	}
+
+	/**
+	 * Return the headers attached to the response, minus the ones identified
+	 * by the names passed in parameter.
+	 * 
+	 * @param headerNames the names of the headers to leave out.
+	 * @return the remaining headers.
+	 */
+	public String getHeadersWithout(String... headerNames) {
+		StringBuffer result = new StringBuffer();
+		int indexLineStart = 0;
+		int indexLineEnd = headers.indexOf("\r\n", indexLineStart);
+		
+		while (indexLineEnd != -1) {
+			String line = headers.substring(indexLineStart, indexLineEnd + 2);
+			int indexSemiColumn = line.indexOf(":");
+			boolean keep = true;
+			if (indexSemiColumn != -1) {
+				String lineHeader = line.substring(0, indexSemiColumn).trim();
+				for (String headerName : headerNames) {
+					if (lineHeader.equalsIgnoreCase(headerName)) {
+						keep = false;
+						break;
+					}
+				}
+			}
+			if (keep)
+				result.append(line);
+			
+			indexLineStart = indexLineEnd + 2;
+			indexLineEnd = headers.indexOf("\r\n", indexLineStart);
+		}
+		
+		return result.toString();
+	}
+
+	/**
+	 * Return the length of the body announced by the Content-Length header.
+	 * 
+	 * @return the length of the body, 0 for responses that never have one,
+	 *  or -1 if it isn't known in advance.
+	 */
+	public long getContentLength() {
+		if (status == null)
+			return -1;
+		if (status.startsWith("1") || status.equals("204") || status.equals("304"))
+			return 0;
+		if (getHeaderValue("Transfer-Encoding") != null)
+			return -1;
+		String value = getHeaderValue("Content-Length");
+		if (value == null)
+			return -1;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Tell whether the body of the response is sent in chunks.
+	 * 
+	 * @return true if the last transfer coding of the response is chunked.
+	 */
+	public boolean isChunked() {
+		if (headers == null)
+			return false;
+		return getCodingsBeforeChunked() != null;
+	}
+
+	/**
+	 * @return the Transfer-Encoding value without its last coding if it is chunked,
+	 *  empty if chunked is the only one, or null if the body isn't chunked.
+	 */
+	String getCodingsBeforeChunked() {
+		String transferEncoding = getHeaderValue("Transfer-Encoding");
+		if (transferEncoding == null)
+			return null;
+		int comma = transferEncoding.lastIndexOf(',');
+		if (!transferEncoding.substring(comma + 1).trim().equalsIgnoreCase("chunked"))
+			return null;
+		return comma == -1 ? "" : transferEncoding.substring(0, comma).trim();
+	}
+
+	/**
+	 * Tell whether the end of the response can be found without the connection
+	 *  being closed, so that it can carry other requests afterwards.
+	 * 
+	 * @return true if the response has no body, a Content-Length, or a chunked body.
+	 */
+	public boolean isSelfDelimited() {
+		return getContentLength() >= 0 || isChunked();
+	}
+
+	/**
+	 * Return the offset at which the body of the response starts
+	 *  in the byte array returned by getBytes().
+	 * 
+	 * @return the offset of the body, or the length of the response if it has no body.
+	 */
+	public int getBodyOffset() {
+		for (int i = 0; i + 1 < fullContent.length; i++) {
+			if (fullContent[i] != '\n')
+				continue;
+			if (fullContent[i + 1] == '\n')
+				return i + 2;
+			if (i + 2 < fullContent.length && fullContent[i + 1] == '\r' && fullContent[i + 2] == '\n')
+				return i + 3;
+		}
+		return fullContent.length;
+	}
+
 	/**
 	 * Return a byte array (which can be sent through the network) corresponding to the HTTP response.
 	 * 
@@ -200,6 +372,59 @@ public class HTTPResponse {
 		return this.fullContent;
 	}
 
+	/**
+	 * Write the response to a stream, as it should be sent through the network.
+	 * 
+	 * @param out the stream to write the response to.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(this.fullContent);
+	}
+
+	/**
+	 * Return the response to a HEAD request matching this response,
+	 *  ie. the same status line and headers, without the body.
+	 * 
+	 * @return the response without its body.
+	 * @throws ProxyException if an error occurs when constructing the HTTP response
+	 */
+	public HTTPResponse withoutBody() throws ProxyException {
+		return new HTTPResponse(Arrays.copyOf(fullContent, getBodyOffset()));
+	}
+
+	/**
+	 * Return the same response with its chunked body joined back together and
+	 *  sent with a Content-Length, so that it can be served in ranges, or as is
+	 *  to any client. Trailers are left out. Transfer codings applied before
+	 *  chunked are kept, without a Content-Length then, and responses whose
+	 *  last coding isn't chunked are returned unchanged.
+	 *
+	 * @return the response without chunk framing, or this response.
+	 * @throws ProxyException if the chunked body is not well-formed, or incomplete.
+	 */
+	public HTTPResponse dechunked() throws ProxyException {
+		String codings = getCodingsBeforeChunked();
+		if (codings == null)
+			return this;
+
+		int bodyOffset = getBodyOffset();
+		ByteBuffer in = ByteBuffer.wrap(fullContent, bodyOffset, fullContent.length - bodyOffset);
+		ByteBuffer body = ByteBuffer.allocate(in.remaining());
+		BodyFramer framer = BodyFramer.forChunked(BodyFramer.DECHUNK);
+		if (!framer.process(in, body))
+			framer.finish(body);
+
+		byte[] head = (httpVersion + " " + status + " " + reason + "\r\n" +
+				getHeadersWithout("Transfer-Encoding", "Content-Length", "Trailer") +
+				// a Content-Length can't come with a Transfer-Encoding: the body then ends with the connection
+				(codings.length() != 0 ? "Transfer-Encoding: " + codings : "Content-Length: " + body.position())
+				+ "\r\n\r\n").getBytes();
+		byte[] content = Arrays.copyOf(head, head.length + body.position());
+		System.arraycopy(body.array(), 0, content, head.length, body.position());
+		return new HTTPResponse(content);
+	}
+
 	/**
 	 * Return the string corresponding to the request without its content
 	 *  (i.e., return only the status line and the headers). 
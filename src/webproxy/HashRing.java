@@ -0,0 +1,80 @@
+package webproxy;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring mapping URLs to the member of a cluster that owns them.
+ *
+ * Each member is placed at VIRTUAL_NODES points of the ring, and a URL belongs
+ * to the first member found clockwise from its own hash. Adding or removing a
+ * member only moves the URLs of the arcs it gains or loses, and every instance
+ * given the same member list computes the same owners.
+ *
+ * Immutable, so it can be shared without locking.
+ *
+ * @author Amos Wenger
+ */
+public class HashRing {
+
+	/** Points per member: enough for the members' shares to be within a few percent */
+	static final int VIRTUAL_NODES = 160;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Member names, by their points on the ring */
+	final TreeMap<Long, String> points = new TreeMap<Long, String>();
+
+	final List<String> members;
+
+	/**
+	 * @param members the names of the members, eg. "host:port", in any order.
+	 */
+	public HashRing(List<String> members) {
+		this.members = Collections.unmodifiableList(new ArrayList<String>(members));
+		for (String member : members) {
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+				points.put(hash(member + "#" + i), member);
+		}
+	}
+
+	/**
+	 * @return the member owning the given key, or null if the ring is empty.
+	 */
+	public String getOwner(String key) {
+		if (points.isEmpty())
+			return null;
+		Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : points.firstEntry().getValue();
+	}
+
+	public List<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * @return the first 64 bits of the MD5 digest of the key, which are spread
+	 *  evenly whatever the key looks like (String.hashCode's aren't).
+	 */
+	static long hash(String key) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE has MD5
+			throw new IllegalStateException(e);
+		}
+		byte[] digest = md5.digest(key.getBytes(UTF8));
+		long hash = 0;
+		for (int i = 0; i < 8; i++)
+			hash = (hash << 8) | (digest[i] & 0xff);
+		return hash;
+	}
+
+}
@@ -0,0 +1,118 @@
+package webproxy;
+
+/**
+ * Global byte budget that all in-flight response buffering draws from,
+ * so that many concurrent large downloads can't exhaust the heap.
+ * 
+ * Readers that can't get a reservation either stream the response
+ * instead of buffering it, or wait for bytes to be released, which stops
+ * them from reading their socket and lets TCP flow control slow the origin down.
+ * 
+ * @author Amos Wenger
+ */
+public class MemoryBudget implements MemoryBudgetMBean {
+
+	/** 32MB of in-flight responses by default */
+	public static final long DEFAULT_CAPACITY = 32L * 1024L * 1024L;
+	
+	long capacity;
+	long used = 0;
+	long highWaterMark = 0;
+	long streamedResponses = 0;
+	long overcommits = 0;
+	
+	public MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Reserve bytes if they fit in the budget.
+	 * @return true if the bytes were reserved
+	 */
+	public synchronized boolean tryReserve(long bytes) {
+		if (used + bytes > capacity)
+			return false;
+		grant(bytes);
+		return true;
+	}
+	
+	/**
+	 * Reserve bytes, waiting for other readers to release theirs if needed.
+	 * Past the timeout, the bytes are granted anyway, so that readers all
+	 * holding partial reservations can't deadlock each other.
+	 * 
+	 * @param timeout the maximum time to wait, in milliseconds
+	 */
+	public synchronized void reserve(long bytes, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (used + bytes > capacity && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		if (used + bytes > capacity)
+			overcommits++;
+		grant(bytes);
+	}
+	
+	private void grant(long bytes) {
+		used += bytes;
+		if (used > highWaterMark)
+			highWaterMark = used;
+	}
+	
+	public synchronized void release(long bytes) {
+		used -= bytes;
+		notifyAll();
+	}
+	
+	public synchronized void countStreamedResponse() {
+		streamedResponses++;
+	}
+	
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		notifyAll();
+	}
+	
+	@Override
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+	
+	@Override
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+	
+	@Override
+	public synchronized long getHighWaterMark() {
+		return highWaterMark;
+	}
+	
+	@Override
+	public synchronized long getStreamedResponses() {
+		return streamedResponses;
+	}
+	
+	@Override
+	public synchronized long getOvercommits() {
+		return overcommits;
+	}
+	
+	@Override
+	public synchronized void resetHighWaterMark() {
+		highWaterMark = used;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "in-flight bytes: " + used + "/" + capacity + ", high-water mark: " + highWaterMark
+			+ ", streamed: " + streamedResponses + ", overcommits: " + overcommits;
+	}
+	
+}
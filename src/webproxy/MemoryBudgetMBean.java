@@ -0,0 +1,41 @@
+package webproxy;
+
+/**
+ * Management interface of MemoryBudget, so that heap usage by
+ * in-flight responses can be watched with jconsole & co.
+ * 
+ * @author Amos Wenger
+ */
+public interface MemoryBudgetMBean {
+
+	/**
+	 * @return the number of bytes in-flight responses may hold in total
+	 */
+	public long getCapacity();
+	
+	/**
+	 * @return the number of bytes currently held by in-flight responses
+	 */
+	public long getUsedBytes();
+	
+	/**
+	 * @return the highest number of bytes ever held at once by in-flight responses
+	 */
+	public long getHighWaterMark();
+	
+	/**
+	 * @return the number of responses that were streamed to the client instead of buffered
+	 */
+	public long getStreamedResponses();
+	
+	/**
+	 * @return the number of reservations granted past the capacity after waiting too long
+	 */
+	public long getOvercommits();
+	
+	/**
+	 * Start tracking the high-water mark again from the current usage.
+	 */
+	public void resetHighWaterMark();
+	
+}
@@ -30,4 +30,9 @@ public class MonitorRequestBuffer implements RequestBuffer {
 		return job;
 	}
 	
+	@Override
+	public boolean waitsInPop() {
+		return false;
+	}
+	
 }
@@ -0,0 +1,265 @@
+package webproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Shares one logical cache between proxies that each know the whole cluster.
+ *
+ * Every URL is owned by one member, picked with a consistent-hash ring that all
+ * members build from the same list. A miss for a URL owned by another member is
+ * fetched from that member, which answers from its cache or fetches from the origin
+ * and stores it, and only goes to the origin if that fails. Responses from peers
+ * aren't stored again, so each object is cached once in the cluster.
+ *
+ * Peers talk to each other through their normal proxy port, marking requests with
+ * PEER_HEADER so that they're never forwarded twice. The header is only trusted
+ * from the addresses the members resolve to on startup, anyone else sending it is
+ * served as any browser. Connections between peers stay open as long as responses
+ * carry a Content-Length: the requesting side pools them per peer, the owning side
+ * waits for the next request on one of a bounded number of reader threads rather
+ * than holding a worker, and closes the connection if none is left.
+ *
+ * @author Amos Wenger
+ */
+public class PeerGroup implements PeerGroupMBean {
+
+	/** Marks requests sent by a peer, with the name of the sender as value */
+	static final String PEER_HEADER = "X-WebProxy-Peer";
+
+	/** Reader threads waiting for the next request of peers connected to us, per member */
+	static final int MAX_READERS_PER_PEER = 2 * ConnectionPool.MAX_IDLE_PER_SERVER;
+
+	Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+	/** Our name on the ring, as the other members know us */
+	final String self;
+
+	final HashRing ring;
+
+	/** The shard whose connections are used, and whose buffer requests from peers are queued in */
+	final ProxyShard shard;
+
+	/** Connections to the other peers, kept open between requests */
+	final ConnectionPool pool;
+
+	/** Threads waiting for the next request of peers connected to us */
+	final ExecutorService readers;
+
+	/** IP addresses of the members, the only ones PEER_HEADER is trusted from */
+	final Set<String> addresses;
+
+	final AtomicLong peerFetches = new AtomicLong();
+	final AtomicLong peerFailures = new AtomicLong();
+	final AtomicLong requestsFromPeers = new AtomicLong();
+
+	/**
+	 * @param self our name in the ring, as "host:port".
+	 * @param ring the cluster, which may or may not include us.
+	 * @param shard the shard this group fetches for.
+	 */
+	public PeerGroup(String self, HashRing ring, final ProxyShard shard) {
+		this.self = self;
+		this.ring = ring;
+		this.shard = shard;
+		pool = new ConnectionPool(shard.connections);
+		addresses = resolve(ring.getMembers());
+		// no queue: a connection no thread is left for is closed rather than left waiting
+		readers = new ThreadPoolExecutor(0, Math.max(ring.getMembers().size(), 1) * MAX_READERS_PER_PEER,
+				60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "peer-reader-" + shard.index + "-" + count.getAndIncrement());
+			}
+		});
+	}
+
+	/**
+	 * @param members the members of the cluster, as "host:port".
+	 * @return all the IP addresses their host names resolve to.
+	 */
+	Set<String> resolve(List<String> members) {
+		Set<String> result = new HashSet<String>();
+		for (String member : members) {
+			int colon = member.lastIndexOf(':');
+			String host = colon == -1 ? member : member.substring(0, colon);
+			try {
+				for (InetAddress address : InetAddress.getAllByName(host))
+					result.add(address.getHostAddress());
+			} catch (UnknownHostException e) {
+				logger.log(Level.WARNING, "Couldn't resolve peer " + member + ", its requests will be treated as a browser's");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param clientAddress the IP address the request came from.
+	 * @return the peer owning the URL of the request, or null if it should be
+	 *  handled here: it's ours, it isn't a GET, or it was sent by a peer already.
+	 */
+	String getOwner(HTTPRequest request, String clientAddress) {
+		if (!request.getMethod().equalsIgnoreCase("GET") || isFromPeer(request, clientAddress))
+			return null;
+		String owner = ring.getOwner(request.getAbsoluteURL());
+		return owner == null || owner.equals(self) ? null : owner;
+	}
+
+	/**
+	 * @param clientAddress the IP address the request came from.
+	 * @return true if the request is marked as sent by a peer, and comes from the address of a member.
+	 */
+	boolean isFromPeer(HTTPRequest request, String clientAddress) {
+		return request.getHeaderValue(PEER_HEADER) != null && addresses.contains(clientAddress);
+	}
+
+	/**
+	 * Fetch a response from the peer owning its URL. A pooled connection that
+	 * turns out to be closed is replaced by a new one. A peer turning us away,
+	 * or failing, counts as not answering, so that the origin is asked instead.
+	 *
+	 * Responses returned by this method must be passed to TCPConnections.releaseHTTPResponse
+	 * once they're no longer needed.
+	 *
+	 * @param owner the peer, as returned by getOwner.
+	 * @param clientCid the connection to stream the response to if it can't be buffered.
+	 * @return the response, or null if it was streamed to the client.
+	 * @throws ProxyException if the peer couldn't answer.
+	 */
+	HTTPResponse fetch(String owner, HTTPRequest request, int clientCid) throws ProxyException {
+		TCPConnections connections = shard.connections;
+		ByteBuffer[] buffers = { ByteBuffer.wrap(toPeerRequest(request)) };
+
+		while (true) {
+			int cid = pool.take(owner);
+			boolean pooled = cid != -1;
+			try {
+				if (!pooled)
+					cid = pool.open(owner);
+			} catch (ProxyException e) {
+				peerFailures.incrementAndGet();
+				throw e;
+			}
+			HTTPResponse response;
+			try {
+				connections.sendHTTPRequest(cid, buffers);
+				response = connections.getPersistentHTTPResponse(cid, clientCid);
+			} catch (ProxyException e) {
+				pool.close(cid);
+				if (pooled && !connections.hasRelayed(clientCid)) {
+					buffers[0].rewind();
+					continue;
+				}
+				peerFailures.incrementAndGet();
+				throw e;
+			}
+			pool.giveBack(owner, cid);
+			String status = response != null ? response.getStatus() : null;
+			// eg. our address went over the peer's client.max.rps: its answer isn't the origin's
+			if (status != null && (status.equals("429") || status.startsWith("5"))) {
+				connections.releaseHTTPResponse(response);
+				peerFailures.incrementAndGet();
+				throw new ProxyException("Peer " + owner + " answered " + status);
+			}
+			peerFetches.incrementAndGet();
+			return response;
+		}
+	}
+
+	/**
+	 * Close the connection of a request we've answered, or, if it came from a
+	 * peer that can send another one through it, wait for the next request.
+	 */
+	void finishExchange(final int clientCid, HTTPRequest request, String clientAddress) throws ProxyException {
+		if (!isFromPeer(request, clientAddress)) {
+			shard.connections.closeConnection(clientCid);
+			return;
+		}
+
+		requestsFromPeers.incrementAndGet();
+		if (!shard.connections.canKeepAlive(clientCid)) {
+			shard.connections.closeConnection(clientCid);
+			return;
+		}
+		try {
+			readers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						shard.queueRequest(clientCid);
+					} catch (ProxyException e) {
+						// the peer closed the connection, or left it idle for too long
+						logger.log(Level.FINEST, "peer connection " + clientCid + " done: " + e);
+						pool.close(clientCid);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the peer will open a new one next time
+			shard.connections.closeConnection(clientCid);
+		}
+	}
+
+	/**
+	 * @return the request to send to a peer: the received one, with the URL in
+	 *  absolute form since peers are proxies, marked as coming from us.
+	 */
+	byte[] toPeerRequest(HTTPRequest request) {
+		String result = request.getMethod() + " " + request.getAbsoluteURL() + " " + request.getHTTPVersion() + "\r\n" +
+				request.getHeadersWithout("Connection", PEER_HEADER) +
+				PEER_HEADER + ": " + self + "\r\n" +
+				"Connection: keep-alive\r\n\r\n";
+		return result.getBytes(HTTPRequest.LATIN1);
+	}
+
+	@Override
+	public long getPeerFetches() {
+		return peerFetches.get();
+	}
+
+	@Override
+	public long getPeerFailures() {
+		return peerFailures.get();
+	}
+
+	@Override
+	public long getOpenedConnections() {
+		return pool.getOpenedConnections();
+	}
+
+	@Override
+	public long getReusedConnections() {
+		return pool.getReusedConnections();
+	}
+
+	@Override
+	public long getRequestsFromPeers() {
+		return requestsFromPeers.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("peers: %d members, fetched from owners: %d (%d failed), connections opened: %d, reused: %d, requests from peers: %d",
+				ring.getMembers().size(), getPeerFetches(), getPeerFailures(), getOpenedConnections(),
+				getReusedConnections(), getRequestsFromPeers());
+	}
+
+}
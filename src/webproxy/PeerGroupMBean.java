@@ -0,0 +1,36 @@
+package webproxy;
+
+/**
+ * Management interface of PeerGroup, to see how much of the cluster's
+ * traffic is served by the owner of each URL rather than the origin.
+ *
+ * @author Amos Wenger
+ */
+public interface PeerGroupMBean {
+
+	/**
+	 * @return the number of responses fetched from the peer owning the URL
+	 */
+	public long getPeerFetches();
+
+	/**
+	 * @return the number of times the owning peer couldn't answer and the origin was asked instead
+	 */
+	public long getPeerFailures();
+
+	/**
+	 * @return the number of connections opened to peers
+	 */
+	public long getOpenedConnections();
+
+	/**
+	 * @return the number of requests sent to peers over a pooled connection
+	 */
+	public long getReusedConnections();
+
+	/**
+	 * @return the number of requests other peers sent us for URLs we own
+	 */
+	public long getRequestsFromPeers();
+
+}
@@ -0,0 +1,389 @@
+package webproxy;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Runtime configuration of the proxy, read from a properties file
+ * and command-line flags, the latter taking precedence.
+ *
+ * Each setting can be given as "--name value" on the command line or
+ * "name = value" in the file given by "--config". Settings marked as live
+ * can be changed while the proxy runs, through the admin endpoint.
+ *
+ * @author Amos Wenger
+ */
+public class ProxyConfig {
+
+	/**
+	 * A setting: its name, default value, whether it can be changed live, and what it does.
+	 */
+	static class Option {
+		final String name;
+		final String defaultValue;
+		final boolean live;
+		final String description;
+
+		Option(String name, String defaultValue, boolean live, String description) {
+			this.name = name;
+			this.defaultValue = defaultValue;
+			this.live = live;
+			this.description = description;
+		}
+	}
+
+	static final Option[] OPTIONS = {
+		new Option("ports", String.valueOf(WebProxy.DEFAULT_PORT), false, "comma-separated ports to listen on for browsers"),
+		new Option("workers", "20", false, "number of worker threads, per shard"),
+		new Option("shards", "1", false, "independent copies of the proxy sharing the ports through SO_REUSEPORT, 0 for one per processor"),
+		new Option("buffer", "semaphore", false, "request buffer implementation: semaphore, monitor, fair (per-client round-robin) or stealing (per-worker deques)"),
+		new Option("socket.timeout", "10000", true, "socket timeout, in milliseconds"),
+		new Option("read.buffer.size", "16k", true, "size of the chunks responses are read by"),
+		new Option("cache.max.bytes", "64m", true, "memory used to store responses"),
+		new Option("inflight.max.bytes", "32m", true, "memory responses being read may hold before being streamed"),
+		new Option("peers", "", false, "comma-separated host:port of all the proxies sharing their cache, this one included"),
+		new Option("peer.name", "", false, "host:port of this proxy in the peers list, localhost and the first port if empty"),
+		new Option("backends", "", false, "backend groups of the reverse-proxy mode: name=host:port|host:port;name2=..."),
+		new Option("routes", "", false, "reverse-proxy routes to backend groups, the most specific wins: [host]/prefix=group,..."),
+		new Option("balancer", "peak-ewma", false, "how backends of a group are picked: peak-ewma or least-outstanding"),
+		new Option("client.max.connections", "0", true, "connections each client address may have open at once, 0 for no limit"),
+		new Option("client.max.rps", "0", true, "connections per second each client address may open, on average, 0 for no limit"),
+		new Option("client.burst", "20", true, "connections each client address may open at once within client.max.rps"),
+		new Option("client.max.bandwidth", "0", true, "bytes per second each client address may receive, 0 for no limit; also caps its connections to a quarter of the workers"),
+		new Option("warmup.file", "", false, "file the hottest URLs are saved to, and fetched again from on startup to warm the cache up, empty to disable"),
+		new Option("warmup.urls", "1000", false, "how many of the hottest URLs are saved"),
+		new Option("warmup.interval", "60", false, "seconds between two saves of the hottest URLs"),
+		new Option("warmup.concurrency", "4", false, "fetches in progress at once while warming the cache up"),
+		new Option("warmup.rate", "20", false, "fetches started per second while warming the cache up"),
+		new Option("origin.allow.local", "false", true, "let browsers reach servers on the loopback interface through the proxy, eg. to test it, never the admin port"),
+		new Option("admin.port", "-1", false, "port of the admin endpoint on 127.0.0.1, -1 to disable it"),
+		new Option("admin.token", "", false, "secret to send in the " + AdminServer.TOKEN_HEADER + " header to change anything through the admin endpoint, empty to only allow looking"),
+		new Option("jfr.dir", "recordings", false, "directory flight recordings are written to by the admin endpoint"),
+		new Option("log.level", "INFO", true, "java.util.logging level of the console output"),
+	};
+
+	/** Path of the config file, if any */
+	String file;
+
+	/** Settings given on the command line, which take precedence over the file */
+	final Map<String, String> overrides = new LinkedHashMap<String, String>();
+
+	/** Current value of all settings */
+	final Map<String, String> values = new LinkedHashMap<String, String>();
+
+	/**
+	 * Create a configuration with the default value of every setting.
+	 */
+	public ProxyConfig() {
+		for (Option option : OPTIONS)
+			values.put(option.name, option.defaultValue);
+	}
+
+	/**
+	 * @return the default configuration, listening on the given port with the given number of workers.
+	 */
+	public static ProxyConfig defaults(int port, int workers) {
+		ProxyConfig config = new ProxyConfig();
+		config.overrides.put("ports", String.valueOf(port));
+		config.overrides.put("workers", String.valueOf(workers));
+		config.values.putAll(config.overrides);
+		return config;
+	}
+
+	/**
+	 * Parse the command line, and the config file it points to, if any.
+	 *
+	 * @param args the command-line arguments.
+	 * @return the configuration, or null if help was asked for.
+	 * @throws ProxyException if an argument, the config file, or a value in it is invalid.
+	 */
+	public static ProxyConfig fromCommandLine(String[] args) throws ProxyException {
+		ProxyConfig config = new ProxyConfig();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-h") || arg.equals("--help"))
+				return null;
+			if (!arg.startsWith("--") || i + 1 >= args.length)
+				throw new ProxyException("Invalid argument: " + arg);
+
+			String name = arg.substring(2);
+			String value = args[++i];
+			if (name.equals("config")) {
+				config.file = value;
+			} else {
+				config.checkValue(name, value);
+				config.overrides.put(name, value);
+			}
+		}
+		config.load(true);
+		return config;
+	}
+
+	/**
+	 * Read the config file again, if any, then apply command-line overrides.
+	 * Only live settings take their new value, the others keep the one the
+	 * proxy was started with until it's restarted.
+	 *
+	 * @return the settings whose value changed in the file, live or not.
+	 * @throws ProxyException if the file can't be read or a value in it is invalid.
+	 */
+	public Map<String, String> load() throws ProxyException {
+		return load(false);
+	}
+
+	/**
+	 * Read the config file, if any, then apply command-line overrides.
+	 *
+	 * @param startup true to take the value of every setting, false for live ones only.
+	 * @return the settings whose value changed.
+	 * @throws ProxyException if the file can't be read or a value in it is invalid.
+	 */
+	private synchronized Map<String, String> load(boolean startup) throws ProxyException {
+		Map<String, String> loaded = new LinkedHashMap<String, String>();
+		for (Option option : OPTIONS)
+			loaded.put(option.name, option.defaultValue);
+
+		if (file != null) {
+			Properties properties = new Properties();
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				properties.load(in);
+			} catch (IOException e) {
+				throw new ProxyException("Couldn't read config file " + file, e);
+			} finally {
+				try {
+					if (in != null)
+						in.close();
+				} catch (IOException e) { }
+			}
+			for (String name : properties.stringPropertyNames()) {
+				String value = properties.getProperty(name).trim();
+				checkValue(name, value);
+				loaded.put(name, value);
+			}
+		}
+		loaded.putAll(overrides);
+
+		Map<String, String> changed = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : loaded.entrySet()) {
+			if (!entry.getValue().equals(values.get(entry.getKey())))
+				changed.put(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, String> entry : loaded.entrySet()) {
+			// the running proxy still uses the others, eg. the admin.port it's bound to
+			if (startup || isLive(entry.getKey()))
+				values.put(entry.getKey(), entry.getValue());
+		}
+		return changed;
+	}
+
+	/**
+	 * Change a setting while the proxy runs.
+	 *
+	 * @throws ProxyException if the setting doesn't exist, can't be changed live, or the value is invalid.
+	 */
+	public synchronized void set(String name, String value) throws ProxyException {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		settings.put(name, value);
+		setAll(settings);
+	}
+
+	/**
+	 * Change several settings while the proxy runs, all of them or none.
+	 *
+	 * @throws ProxyException if one of the settings doesn't exist, can't be changed live,
+	 *  or its value is invalid, in which case none is changed.
+	 */
+	public synchronized void setAll(Map<String, String> settings) throws ProxyException {
+		for (Map.Entry<String, String> entry : settings.entrySet()) {
+			checkValue(entry.getKey(), entry.getValue());
+			if (!getOption(entry.getKey()).live)
+				throw new ProxyException(entry.getKey() + " can't be changed while the proxy runs");
+		}
+		values.putAll(settings);
+		overrides.putAll(settings);
+	}
+
+	public synchronized String get(String name) {
+		return values.get(name);
+	}
+
+	public synchronized int getInt(String name) {
+		return Integer.parseInt(values.get(name));
+	}
+
+	/**
+	 * @return the value of a setting given in bytes, with an optional k, m or g suffix.
+	 */
+	public synchronized long getSize(String name) {
+		return parseSize(values.get(name));
+	}
+
+	/**
+	 * @return the ports to listen on for browsers
+	 */
+	public synchronized int[] getPorts() {
+		String[] parts = values.get("ports").split(",");
+		int[] ports = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			ports[i] = Integer.parseInt(parts[i].trim());
+		return ports;
+	}
+
+	/**
+	 * @return the proxies sharing their cache with this one, as "host:port", empty if there are none
+	 */
+	public synchronized List<String> getPeers() {
+		List<String> peers = new ArrayList<String>();
+		for (String peer : values.get("peers").split(",")) {
+			if (peer.trim().length() != 0)
+				peers.add(peer.trim());
+		}
+		return peers;
+	}
+
+	/**
+	 * @return the name of this proxy in the peers list
+	 */
+	public synchronized String getPeerName() {
+		String name = values.get("peer.name").trim();
+		return name.length() != 0 ? name : "localhost:" + getPorts()[0];
+	}
+
+	public static boolean isLive(String name) {
+		Option option = getOption(name);
+		return option != null && option.live;
+	}
+
+	/**
+	 * @return the request buffer implementation selected by the "buffer" setting
+	 */
+	public RequestBuffer createRequestBuffer() {
+		return createRequestBuffer(get("buffer"));
+	}
+
+	/**
+	 * @param name semaphore, monitor, fair or stealing
+	 * @return a new request buffer of the given implementation, semaphore if unknown
+	 */
+	public static RequestBuffer createRequestBuffer(String name) {
+		if (name.equals("monitor"))
+			return new MonitorRequestBuffer();
+		if (name.equals("fair"))
+			return new FairRequestBuffer();
+		if (name.equals("stealing"))
+			return new WorkStealingRequestBuffer();
+		return new SemaphoreRequestBuffer();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuffer result = new StringBuffer();
+		for (Option option : OPTIONS) {
+			String value = values.get(option.name);
+			if (option.name.equals("admin.token") && value.length() != 0)
+				value = "(hidden)";
+			result.append(option.name + " = " + value + (option.live ? " (live)" : "") + "\n");
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return the help text listing all settings
+	 */
+	public static String getUsage() {
+		StringBuffer result = new StringBuffer();
+		result.append("Usage: WebProxy [--config file] [--setting value]...\n\n");
+		result.append("Settings (live ones can be changed through the admin endpoint):\n");
+		for (Option option : OPTIONS) {
+			result.append(String.format("  --%-20s %s (default: %s%s)\n", option.name, option.description,
+					option.defaultValue, option.live ? ", live" : ""));
+		}
+		return result.toString();
+	}
+
+	static Option getOption(String name) {
+		for (Option option : OPTIONS) {
+			if (option.name.equals(name))
+				return option;
+		}
+		return null;
+	}
+
+	void checkValue(String name, String value) throws ProxyException {
+		if (getOption(name) == null)
+			throw new ProxyException("Unknown setting: " + name);
+
+		try {
+			if (name.equals("ports")) {
+				for (String port : value.split(",")) {
+					int number = Integer.parseInt(port.trim());
+					if (number < 1 || number > 65535)
+						throw new ProxyException("Invalid port in " + name + ": " + port.trim());
+				}
+			} else if (name.equals("admin.port")) {
+				int port = Integer.parseInt(value);
+				if (port != -1 && (port < 1 || port > 65535))
+					throw new ProxyException(name + " must be a port between 1 and 65535, or -1");
+			} else if (name.equals("workers")) {
+				if (Integer.parseInt(value) < 1)
+					throw new ProxyException(name + " must be at least 1");
+			} else if (name.equals("socket.timeout")) {
+				if (Integer.parseInt(value) < 0)
+					throw new ProxyException(name + " can't be negative");
+			} else if (name.equals("read.buffer.size")) {
+				long size = parseSize(value);
+				if (size <= 0 || size > Integer.MAX_VALUE)
+					throw new ProxyException(name + " must be positive, and less than 2g");
+			} else if (name.equals("shards") || name.equals("client.max.connections") || name.equals("client.max.rps") || name.equals("client.burst")) {
+				if (Integer.parseInt(value) < 0)
+					throw new ProxyException(name + " can't be negative");
+			} else if (name.startsWith("warmup.") && !name.equals("warmup.file")) {
+				if (Integer.parseInt(value) <= 0)
+					throw new ProxyException(name + " must be positive");
+			} else if (name.equals("client.max.bandwidth")) {
+				if (parseSize(value) < 0)
+					throw new ProxyException(name + " can't be negative");
+			} else if (name.endsWith(".size") || name.endsWith(".bytes")) {
+				if (parseSize(value) <= 0)
+					throw new ProxyException(name + " must be positive");
+			} else if (name.equals("buffer")) {
+				if (!value.equals("semaphore") && !value.equals("monitor") && !value.equals("fair") && !value.equals("stealing"))
+					throw new ProxyException("Unknown buffer implementation: " + value);
+			} else if (name.equals("origin.allow.local")) {
+				if (!value.equals("true") && !value.equals("false"))
+					throw new ProxyException(name + " must be true or false");
+			} else if (name.equals("log.level")) {
+				Level.parse(value);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ProxyException("Invalid value for " + name + ": " + value);
+		}
+	}
+
+	static long parseSize(String value) {
+		String lower = value.trim().toLowerCase();
+		long multiplier = 1;
+		if (lower.endsWith("k")) {
+			multiplier = 1024L;
+		} else if (lower.endsWith("m")) {
+			multiplier = 1024L * 1024L;
+		} else if (lower.endsWith("g")) {
+			multiplier = 1024L * 1024L * 1024L;
+		}
+		if (multiplier != 1)
+			lower = lower.substring(0, lower.length() - 1);
+		return Long.parseLong(lower.trim()) * multiplier;
+	}
+
+}
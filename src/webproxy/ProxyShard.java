@@ -0,0 +1,246 @@
+package webproxy;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import webproxy.exceptions.ProxyException;
+import webproxy.events.EnqueueEvent;
+
+/**
+ * One independent copy of the proxy machinery: listeners, connection table,
+ * request buffer, workers, response cache and in-flight memory budget.
+ *
+ * A proxy runs one shard by default. With several, every shard binds the same
+ * ports with SO_REUSEPORT and the kernel spreads incoming connections between
+ * them, so shards never touch each other's state and the only contention left
+ * is inside a shard. The cache and memory budgets are split evenly, which means
+ * a popular URL may be stored once per shard.
+ *
+ * @author Amos Wenger
+ */
+public class ProxyShard {
+
+	Logger logger = Logger.getLogger(getClass().getSimpleName());
+
+	/** Position of this shard, used to name its threads and MBeans */
+	final int index;
+
+	/** Used to dispatch jobs between this shard's worker threads */
+	final RequestBuffer buffer;
+
+	/** Connections accepted by this shard, and the ones it opens upstream */
+	final TCPConnections connections;
+
+	/** This shard's part of the stored responses */
+	final ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+
+	/** This shard's part of the memory that in-flight responses may hold */
+	final MemoryBudget budget = new MemoryBudget(MemoryBudget.DEFAULT_CAPACITY);
+
+	/** Other proxies sharing their cache with us, or null if we run alone */
+	PeerGroup peers;
+
+	/** Backend groups we're a reverse proxy for, or null if we're only a forward proxy */
+	RouteTable routes;
+
+	/**
+	 * @param index position of this shard among its siblings.
+	 * @param ports the ports to listen on for browsers.
+	 * @param reusePort whether other shards listen on the same ports.
+	 * @param buffer the request buffer this shard's workers pull jobs from.
+	 * @throws ProxyException if the ports can't be listened on.
+	 */
+	public ProxyShard(int index, int[] ports, boolean reusePort, RequestBuffer buffer) throws ProxyException {
+		this.index = index;
+		this.buffer = buffer;
+		connections = new TCPConnections(ports, budget, reusePort);
+	}
+
+	/**
+	 * Share the cache with the other members of a cluster.
+	 *
+	 * @param self our name in the ring, as "host:port".
+	 * @param ring all the members of the cluster.
+	 */
+	void joinCluster(String self, HashRing ring) {
+		peers = new PeerGroup(self, ring, this);
+	}
+
+	/**
+	 * Act as a reverse proxy for the configured backend groups.
+	 *
+	 * @throws ProxyException if the routes or backend groups are invalid.
+	 */
+	void enableReverseProxy(ProxyConfig config) throws ProxyException {
+		routes = new RouteTable(config.get("backends"), config.get("routes"), config.get("balancer"),
+				new ConnectionPool(connections));
+	}
+
+	/**
+	 * Register the memory budget, and the request buffer if it has statistics, as MBeans.
+	 *
+	 * @param qualifier appended to the object names, to tell shards apart
+	 */
+	void registerMBeans(String qualifier) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(budget, new ObjectName("webproxy:type=MemoryBudget" + qualifier));
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Couldn't register the memory budget MBean: " + e);
+		}
+		if (buffer instanceof FairRequestBufferMBean || buffer instanceof WorkStealingRequestBufferMBean) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(buffer, new ObjectName("webproxy:type=RequestBuffer" + qualifier));
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Couldn't register the request buffer MBean: " + e);
+			}
+		}
+		if (peers != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(peers, new ObjectName("webproxy:type=PeerGroup" + qualifier));
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Couldn't register the peer group MBean: " + e);
+			}
+		}
+		if (routes != null) {
+			for (BackendGroup group : routes.getGroups()) {
+				for (Backend backend : group.backends) {
+					try {
+						ManagementFactory.getPlatformMBeanServer().registerMBean(backend, new ObjectName("webproxy:type=Backend,group="
+								+ ObjectName.quote(group.name) + ",name=" + ObjectName.quote(backend.name) + qualifier));
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Couldn't register the MBean of backend " + backend.name + ": " + e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply the current value of the live settings, this shard getting
+	 * its share of the memory ones.
+	 *
+	 * @param shardCount the number of shards the memory is split between
+	 */
+	void applyLiveSettings(ProxyConfig config, int shardCount) {
+		connections.setSocketTimeout(config.getInt("socket.timeout"));
+		connections.setReadBufferSize((int) config.getSize("read.buffer.size"));
+		connections.setLocalOrigins(config.get("origin.allow.local").equals("true"), config.getInt("admin.port"));
+		cache.setMaxBytes(config.getSize("cache.max.bytes") / shardCount);
+		budget.setCapacity(config.getSize("inflight.max.bytes") / shardCount);
+	}
+
+	/**
+	 * Start the worker threads, and one acceptor thread per listener except the
+	 * first listener of the first shard, which is left for the caller to serve.
+	 *
+	 * @param workers the number of worker threads of this shard
+	 */
+	void start(int workers) {
+		for(int i = 0; i < workers; i++) {
+			new HTTPJobWorker(connections, buffer, cache, peers, routes);
+		}
+
+		for(int i = index == 0 ? 1 : 0; i < connections.getListenerCount(); i++) {
+			final int listener = i;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						acceptConnection(listener);
+					}
+				}
+			}, "acceptor-" + index + "-" + i).start();
+		}
+	}
+
+	/**
+	 * @return a human-readable summary of this shard's memory usage
+	 */
+	String getStats() {
+		return budget + "\n" +
+			"cached bytes: " + cache.getUsedBytes() + "/" + cache.getMaxBytes() + ", hit ratio: " + getHitRatio() + "\n" +
+			(buffer instanceof FairRequestBuffer || buffer instanceof WorkStealingRequestBuffer ? buffer + "\n" : "") +
+			(peers != null ? peers + "\n" : "") +
+			(routes != null ? routes : "");
+	}
+
+	/**
+	 * @return the share of the requests answered from the cache, eg. "42.0% of 1234 requests"
+	 */
+	String getHitRatio() {
+		long requests = cache.getRequests();
+		return requests == 0 ? "no requests yet" : String.format("%.1f%% of %d requests", 100.0 * cache.getHits() / requests, requests);
+	}
+
+	/**
+	 * @return HTTPJob.PRIORITY_HIGH for requests we can answer cheaply, HTTPJob.PRIORITY_NORMAL for the others
+	 */
+	int prioritize(HTTPRequest request) {
+		if (request.getMethod().equalsIgnoreCase("HEAD"))
+			return HTTPJob.PRIORITY_HIGH;
+		CachedResponse cached = cache.get(request.getAbsoluteURL(), request);
+		if (cached != null && cached.isFresh(System.currentTimeMillis()))
+			return HTTPJob.PRIORITY_HIGH;
+		return HTTPJob.PRIORITY_NORMAL;
+	}
+
+	/**
+	 * @return the expected size of the response, in bytes: the size of the stored one
+	 *  if there is one, fresh or not, HTTPJob.DEFAULT_COST if we have no idea
+	 */
+	int estimateCost(HTTPRequest request) {
+		if (request.getMethod().equalsIgnoreCase("HEAD"))
+			return HTTPJob.MIN_COST;
+		CachedResponse cached = cache.get(request.getAbsoluteURL(), request);
+		return cached != null ? Math.max(cached.getSize(), HTTPJob.MIN_COST) : HTTPJob.DEFAULT_COST;
+	}
+
+	public void acceptConnection(int listener) {
+		int clientCid = -1;
+		try {
+			clientCid = connections.getNewClientConnection(listener);
+			queueRequest(clientCid);
+		} catch (ProxyException e) {
+			// FIXME: handle that better
+			e.printStackTrace();
+			// no request to answer: let the client go, so that it doesn't count against its connection limit
+			if (clientCid != -1) {
+				try {
+					connections.closeConnection(clientCid);
+				} catch (ProxyException ce) { }
+			}
+		}
+
+	}
+
+	/**
+	 * Wait for a request on a connection, and queue it for the workers.
+	 *
+	 * @throws ProxyException if no valid request could be read.
+	 */
+	void queueRequest(int clientCid) throws ProxyException {
+		HTTPRequest request = connections.getHTTPRequest(clientCid);
+
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "Got request: ");
+			logger.log(Level.FINEST, request.toString());
+		}
+
+		String clientAddress = connections.getRemoteAddress(clientCid);
+		int priority = prioritize(request);
+
+		// recorded first, so that it comes before the worker's events
+		EnqueueEvent event = new EnqueueEvent();
+		if (event.shouldCommit()) {
+			event.cid = clientCid;
+			event.host = request.getHeaderValue("Host");
+			event.priority = priority;
+			event.commit();
+		}
+		buffer.queue(new HTTPJob(request, clientCid, clientAddress, priority, estimateCost(request)));
+	}
+
+}
@@ -19,4 +19,10 @@ public interface RequestBuffer {
 	 */
 	public HTTPJob pop();
 	
+	/**
+	 * @return true if pop() waits a while for a job before returning null, so that
+	 *  workers don't need to sleep before trying again
+	 */
+	public boolean waitsInPop();
+	
 }
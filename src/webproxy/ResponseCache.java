@@ -0,0 +1,178 @@
+package webproxy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory store of HTTP responses, indexed by absolute URL.
+ * The least recently used entries are evicted once the stored
+ * responses exceed the byte budget.
+ *
+ * One response is kept per URL. A response with a Vary header only answers
+ * requests with the same values of the headers it names, and is replaced by
+ * the response to a request with other values.
+ *
+ * @author Amos Wenger
+ */
+public class ResponseCache {
+
+	/** 64MB is plenty for a desktop proxy */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+	/** Responses bigger than this fraction of the budget are never stored */
+	static final int MAX_ENTRY_FRACTION = 8;
+
+	/** Entries, in access order */
+	final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+	long maxBytes;
+
+	long usedBytes = 0;
+
+	/** Requests counted, and those answered with a fresh stored response */
+	long requests = 0;
+	long hits = 0;
+
+	public ResponseCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the stored response for this URL, fresh or not, or null if there is none
+	 */
+	public synchronized CachedResponse get(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * @return the stored response for this URL, fresh or not, if the headers it varies on
+	 *  have the same values in the request as in the one it answered, or null
+	 */
+	public synchronized CachedResponse get(String url, HTTPRequest request) {
+		CachedResponse entry = entries.get(url);
+		return entry != null && entry.matchesVary(request) ? entry : null;
+	}
+
+	/**
+	 * Store a response, evicting the least recently used entries if needed.
+	 */
+	public synchronized void put(String url, CachedResponse entry) {
+		int size = entry.getSize();
+		if (size > maxBytes / MAX_ENTRY_FRACTION) {
+			remove(url);
+			return;
+		}
+
+		CachedResponse previous = entries.put(url, entry);
+		if (previous != null) {
+			usedBytes -= previous.getSize();
+			entry.inheritHits(previous, System.currentTimeMillis());
+		}
+		usedBytes += size;
+		evict();
+	}
+
+	/**
+	 * Change the byte budget, evicting entries right away if it shrinks.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Evict the least recently used entries until the budget is respected.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, CachedResponse>> iter = entries.entrySet().iterator();
+		while (usedBytes > maxBytes && iter.hasNext()) {
+			CachedResponse evicted = iter.next().getValue();
+			usedBytes -= evicted.getSize();
+			iter.remove();
+		}
+	}
+
+	public synchronized void remove(String url) {
+		CachedResponse previous = entries.remove(url);
+		if (previous != null)
+			usedBytes -= previous.getSize();
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Count a request, for the hit ratio, and for the popularity of the stored
+	 * response for its URL if there is one.
+	 *
+	 * @param url the absolute URL of the request
+	 * @param hit true if the request was answered with a fresh stored response
+	 */
+	public synchronized void countRequest(String url, boolean hit, long now) {
+		requests++;
+		if (hit)
+			hits++;
+		CachedResponse entry = entries.get(url);
+		if (entry != null)
+			entry.countRequest(now);
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the URL of every stored response, with its recent requests (see CachedResponse.getHitScore)
+	 */
+	public synchronized Map<String, Double> getHitScores(long now) {
+		Map<String, Double> result = new HashMap<String, Double>();
+		for (Map.Entry<String, CachedResponse> entry : entries.entrySet())
+			result.put(entry.getKey(), entry.getValue().getHitScore(now));
+		return result;
+	}
+
+	/**
+	 * Decide whether a response may be stored, according to the request
+	 * that triggered it and its own caching headers.
+	 *
+	 * @param request the request sent upstream
+	 * @param response the response received from the origin server
+	 * @return true if the response can be stored
+	 */
+	public static boolean isCacheable(HTTPRequest request, HTTPResponse response) {
+		if (!request.getMethod().equalsIgnoreCase("GET"))
+			return false;
+		if (!"200".equals(response.getStatus()))
+			return false;
+		if (request.getHeaderValue("Authorization") != null)
+			return false;
+
+		String vary = response.getHeaderValue("Vary");
+		if (vary != null && vary.trim().equals("*"))
+			return false;
+
+		String cacheControl = response.getHeaderValue("Cache-Control");
+		if (cacheControl != null) {
+			String lower = cacheControl.toLowerCase();
+			if (lower.contains("no-store") || lower.contains("private"))
+				return false;
+		}
+		String requestCacheControl = request.getHeaderValue("Cache-Control");
+		if (requestCacheControl != null && requestCacheControl.toLowerCase().contains("no-store"))
+			return false;
+
+		return true;
+	}
+
+}
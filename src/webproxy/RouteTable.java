@@ -0,0 +1,153 @@
+package webproxy;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Routes of the reverse-proxy mode: which backend group serves which
+ * Host and path prefix.
+ *
+ * Backend groups are given as "name=host:port|host:port;name2=host:port",
+ * routes as "[host]/prefix=group,...". A route without a host matches any.
+ * Routes for the request's host are preferred, then the longest prefix.
+ *
+ * @author Amos Wenger
+ */
+public class RouteTable {
+
+	/**
+	 * A host (or null for any) and path prefix, and the group serving them.
+	 */
+	static class Route {
+		final String host;
+		final String prefix;
+		final BackendGroup group;
+
+		Route(String host, String prefix, BackendGroup group) {
+			this.host = host;
+			this.prefix = prefix;
+			this.group = group;
+		}
+
+		boolean matches(String host, String path) {
+			return (this.host == null || this.host.equalsIgnoreCase(host)) && path.startsWith(prefix);
+		}
+	}
+
+	/** Routes, the most specific first */
+	final List<Route> routes = new ArrayList<Route>();
+
+	final Map<String, BackendGroup> groups = new LinkedHashMap<String, BackendGroup>();
+
+	/** Connections to the backends of all groups, kept open between requests */
+	final ConnectionPool pool;
+
+	/**
+	 * @param backends the backend groups, see parseBackends.
+	 * @param routes the routes to them.
+	 * @param balancer peak-ewma or least-outstanding.
+	 * @param pool where connections to the backends are kept between requests.
+	 * @throws ProxyException if the routes or groups are invalid, or a route points to an unknown group.
+	 */
+	public RouteTable(String backends, String routes, String balancer, ConnectionPool pool) throws ProxyException {
+		this.pool = pool;
+		int policy = balancer.equals("least-outstanding") ? BackendGroup.LEAST_OUTSTANDING : BackendGroup.PEAK_EWMA;
+		for (Map.Entry<String, List<String>> entry : parseBackends(backends).entrySet())
+			groups.put(entry.getKey(), new BackendGroup(entry.getKey(), entry.getValue(), policy, pool));
+
+		for (String spec : routes.split(",")) {
+			spec = spec.trim();
+			if (spec.length() == 0)
+				continue;
+			int equals = spec.lastIndexOf('=');
+			if (equals == -1)
+				throw new ProxyException("Routes must be given as [host]/prefix=group: " + spec);
+			String target = spec.substring(0, equals).trim();
+			BackendGroup group = groups.get(spec.substring(equals + 1).trim());
+			if (group == null)
+				throw new ProxyException("Route to an unknown backend group: " + spec);
+
+			int slash = target.indexOf('/');
+			String host = slash == 0 ? null : (slash == -1 ? target : target.substring(0, slash));
+			String prefix = slash == -1 ? "/" : target.substring(slash);
+			this.routes.add(new Route(host, prefix, group));
+		}
+
+		Collections.sort(this.routes, new Comparator<Route>() {
+			@Override
+			public int compare(Route a, Route b) {
+				if ((a.host == null) != (b.host == null))
+					return a.host == null ? 1 : -1;
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+	}
+
+	/**
+	 * @return the group serving the URL, or null if no route matches.
+	 */
+	public BackendGroup route(URL url) {
+		String path = url.getPath().length() == 0 ? "/" : url.getPath();
+		for (Route route : routes) {
+			if (route.matches(url.getHost(), path))
+				return route.group;
+		}
+		return null;
+	}
+
+	public Iterable<BackendGroup> getGroups() {
+		return groups.values();
+	}
+
+	/**
+	 * Parse backend groups given as "name=host:port|host:port;name2=host:port".
+	 *
+	 * @return the backends of each group, by name.
+	 * @throws ProxyException if a group has no name or no backends, or a backend isn't host:port.
+	 */
+	static Map<String, List<String>> parseBackends(String value) throws ProxyException {
+		Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		for (String spec : value.split(";")) {
+			spec = spec.trim();
+			if (spec.length() == 0)
+				continue;
+			int equals = spec.indexOf('=');
+			if (equals <= 0)
+				throw new ProxyException("Backend groups must be given as name=host:port|host:port: " + spec);
+
+			List<String> servers = new ArrayList<String>();
+			for (String server : Arrays.asList(spec.substring(equals + 1).split("\\|"))) {
+				server = server.trim();
+				int colon = server.lastIndexOf(':');
+				try {
+					if (colon <= 0)
+						throw new NumberFormatException();
+					Integer.parseInt(server.substring(colon + 1));
+				} catch (NumberFormatException e) {
+					throw new ProxyException("Backends must be given as host:port: " + server);
+				}
+				servers.add(server);
+			}
+			result.put(spec.substring(0, equals).trim(), servers);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer result = new StringBuffer();
+		for (BackendGroup group : groups.values())
+			result.append(group);
+		result.append("backend connections opened: " + pool.getOpenedConnections() + ", reused: " + pool.getReusedConnections() + "\n");
+		return result.toString();
+	}
+
+}
@@ -34,4 +34,9 @@ public class SemaphoreRequestBuffer implements RequestBuffer {
 		return job;
 	}
 
+	@Override
+	public boolean waitsInPop() {
+		return false;
+	}
+
 }
@@ -2,21 +2,32 @@ package webproxy;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import webproxy.exceptions.ForbiddenHostException;
 import webproxy.exceptions.HTTPServerException;
 import webproxy.exceptions.NotImplementedException;
 import webproxy.exceptions.ProxyException;
+import webproxy.events.AcceptEvent;
+import webproxy.events.ConnectEvent;
+import webproxy.events.FirstByteEvent;
+import webproxy.events.ParseEvent;
 
 /**
  * This class models TCP Connections for a proxy.
@@ -39,9 +50,9 @@ public class TCPConnections {
 	private final AtomicInteger nextCID;
 	
 	/**
-	 *  The TCP server 
+	 *  The TCP servers, one per port browsers can connect to 
 	 */
-	protected final ServerSocket client_server;
+	protected final ServerSocket[] client_servers;
 
 	/** 
 	 * The default value (10 seconds) for the delay after which
@@ -50,41 +61,216 @@ public class TCPConnections {
 	final static private int DEFAULT_SOCKET_TIMEOUT = 10000;
 	
 	/**
-	 * Sole constructor.  
+	 *  The default size of the chunks responses are read by 
+	 */
+	final static private int DEFAULT_READ_BUFFER_SIZE = 16384;
+	
+	/**
+	 *  Passed as relayCid to drop responses that don't fit in the in-flight budget, rather than wait for memory 
+	 */
+	final static public int DROP_IF_TOO_LARGE = -2;
+	
+	/**
+	 *  Delay after which a connection initialization or read is aborted, in milliseconds 
+	 */
+	private volatile int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	
+	/**
+	 *  Size of the chunks responses are read by 
+	 */
+	private volatile int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+	
+	/**
+	 *  Initial size of the buffer requests are read into, and the size they may grow to 
+	 */
+	final static private int REQUEST_BUFFER_SIZE = 2048;
+	final static private int MAX_REQUEST_SIZE = 65536;
+	
+	/**
+	 *  Bytes that in-flight responses may hold in memory 
+	 */
+	protected final MemoryBudget budget;
+	
+	/**
+	 *  Limits of what each client address may take, or null 
+	 */
+	private volatile ClientLimiter limiter;
+	
+	/**
+	 *  Whether browsers may reach servers on the loopback interface, and the admin port they never may 
+	 */
+	private volatile boolean allowLocalOrigins = false;
+	private volatile int adminPort = -1;
+	
+	/**
+	 * Constructor with the default in-flight memory budget.
 	 * 
 	 * @param port the port on which the proxy waits for browser connections.
 	 * @throws ProxyException  if an error occurs while initializing the TCP connections servers.
 	 */
 	protected TCPConnections(int port) throws ProxyException {
+		this(new int[] { port }, new MemoryBudget(MemoryBudget.DEFAULT_CAPACITY));
+	}
+	
+	/**
+	 * Main constructor.  
+	 * 
+	 * @param ports the ports on which the proxy waits for browser connections.
+	 * @param budget the bytes that responses being read may hold in memory.
+	 * @throws ProxyException  if an error occurs while initializing the TCP connections servers.
+	 */
+	protected TCPConnections(int[] ports, MemoryBudget budget) throws ProxyException {
+		this(ports, budget, false);
+	}
+	
+	/**
+	 * Constructor for sharded proxies.
+	 * 
+	 * @param ports the ports on which the proxy waits for browser connections.
+	 * @param budget the bytes that responses being read may hold in memory.
+	 * @param reusePort whether to bind with SO_REUSEPORT, so that other instances
+	 *  can listen on the same ports and the kernel spreads connections between them.
+	 * @throws ProxyException  if an error occurs while initializing the TCP connections servers,
+	 *  or if SO_REUSEPORT is asked for and not supported by the platform.
+	 */
+	protected TCPConnections(int[] ports, MemoryBudget budget, boolean reusePort) throws ProxyException {
 				
+		this.budget = budget;
 		connections = new Hashtable<Integer,Connection>();
 		nextCID = new AtomicInteger();
+		client_servers = new ServerSocket[ports.length];
 		try {
-			client_server = new ServerSocket(port);
+			for(int i = 0; i < ports.length; i++) {
+				client_servers[i] = new ServerSocket();
+				if(reusePort) {
+					if(!client_servers[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+						throw new IOException("SO_REUSEPORT isn't supported on this platform, can't run several shards");
+					client_servers[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				client_servers[i].bind(new InetSocketAddress(ports[i]));
+			}
 		} catch(IOException ioe) {
+			for(ServerSocket server : client_servers) {
+				try {
+					if(server != null)
+						server.close();
+				} catch(IOException e) { }
+			}
 			throw new ProxyException(ioe);
 		}
 	}
 	
 	/**
-	 * This method blocks until a new browser connects the proxy, and returns
-	 * the CID of the corresponding connection.
+	 * @return the number of ports the proxy waits for browser connections on.
+	 */
+	public int getListenerCount() {
+		return client_servers.length;
+	}
+	
+	/**
+	 * @param socketTimeout the delay after which new connections give up on
+	 *  establishing or reading, in milliseconds.
+	 */
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+	
+	/**
+	 * @param readBufferSize the size of the chunks responses are read by.
+	 */
+	public void setReadBufferSize(int readBufferSize) {
+		this.readBufferSize = readBufferSize;
+	}
+	
+	/**
+	 * @param limiter the limits new browser connections are checked against as soon
+	 *  as they're accepted, and their responses throttled to, or null for none.
+	 */
+	public void setClientLimiter(ClientLimiter limiter) {
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * This method blocks until a new browser connects the proxy on its first port,
+	 * and returns the CID of the corresponding connection.
 	 * 
 	 * @return the connection ID (CID) for the new connection.
 	 * @throws ProxyException if an error occurs while accepting a new browser connection.
 	 */
 	protected int getNewClientConnection() throws ProxyException {
+		return getNewClientConnection(0);
+	}
+	
+	/**
+	 * This method blocks until a new browser connects the proxy on one of its ports,
+	 * and returns the CID of the corresponding connection.
+	 * Browsers over the limits of the client limiter, if any, are answered with
+	 * a 429 response and disconnected right away, without reading their request.
+	 * 
+	 * @param listener the index of the port, in the order they were given.
+	 * @return the connection ID (CID) for the new connection.
+	 * @throws ProxyException if an error occurs while accepting a new browser connection.
+	 */
+	protected int getNewClientConnection(int listener) throws ProxyException {
 		try {
-			Socket client = client_server.accept();
-			Connection connection = new Connection(client);
-			int cid = nextCID.getAndIncrement();
-			connections.put(new Integer(cid), connection);
-			return cid;
+			while(true) {
+				Socket client = client_servers[listener].accept();
+				ClientLimiter limiter = this.limiter;
+				ClientLimiter.Client limits = null;
+				if(limiter != null) {
+					limits = limiter.admit(client.getInetAddress().getHostAddress());
+					if(limits == null) {
+						reject(client);
+						continue;
+					}
+				}
+				Connection connection;
+				try {
+					connection = new Connection(client, limits);
+				} catch(IOException ioe) {
+					if(limits != null)
+						limits.disconnect();
+					client.close();
+					throw ioe;
+				}
+				int cid = nextCID.getAndIncrement();
+				connection.cid = cid;
+				connections.put(cid, connection);
+				
+				AcceptEvent event = new AcceptEvent();
+				if(event.shouldCommit()) {
+					event.cid = cid;
+					event.clientAddress = client.getInetAddress().getHostAddress();
+					event.port = client.getLocalPort();
+					event.commit();
+				}
+				return cid;
+			}
 		} catch(IOException ioe) {
 			throw new ProxyException(ioe);
 		}
 	}
 	
+	/**
+	 * Answer a browser over its limits with a 429 response, and disconnect it.
+	 * What it already sent is discarded first, so that closing doesn't reset
+	 * the connection before the response gets there.
+	 */
+	private void reject(Socket client) {
+		try {
+			OutputStream out = client.getOutputStream();
+			out.write(ClientLimiter.TOO_MANY_REQUESTS);
+			out.flush();
+			client.shutdownOutput();
+			client.getInputStream().skip(client.getInputStream().available());
+		} catch(IOException e) {
+		} finally {
+			try {
+				client.close();
+			} catch(IOException e) { }
+		}
+	}
+	
 	/**
 	 * This method waits for an HTTP request sent through the connection specified
 	 *  by the connection id (CID).
@@ -96,10 +282,20 @@ public class TCPConnections {
 	 */
 	protected HTTPRequest getHTTPRequest(int cid) throws ProxyException, NotImplementedException {
 		try {
-			Connection connection = (Connection) connections.get(new Integer(cid));
-			if(connection == null)
-				throw new ProxyException("Non-existent TID: "+cid);
-			return connection.readRequest();
+			Connection connection = getConnection(cid);
+			ParseEvent event = new ParseEvent();
+			event.begin();
+			HTTPRequest request = connection.readRequest();
+			event.end();
+			if(event.shouldCommit()) {
+				event.cid = cid;
+				event.method = request.getMethod();
+				event.host = request.getHeaderValue("Host");
+				event.url = request.getURL();
+				event.bytes = request.getBytes().length;
+				event.commit();
+			}
+			return request;
 		} catch(IOException ioe) {
 			throw new ProxyException(ioe);
 		}
@@ -115,15 +311,31 @@ public class TCPConnections {
 	 */
 	protected void sendHTTPRequest(int cid, HTTPRequest request) throws ProxyException {
 		try {
-			Connection connection = (Connection) connections.get(new Integer(cid));
-			if(connection == null)
-				throw new ProxyException("Non-existent TID: "+cid);
+			Connection connection = getConnection(cid);
 			connection.sendRequest(request);
 		} catch(IOException ioe) {
 			throw new ProxyException(ioe);
 		}	
 	}
 	
+	/**
+	 * This method sends a HTTP request made of several buffers (see HTTPRequest.toOriginFormBuffers)
+	 * through the connection specified by the connection ID (CID), in a single gathering write
+	 * for connections to HTTP servers.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @param buffers the bytes of the HTTP request to be sent. 
+	 * @throws ProxyException if an error occurs while sending the request.
+	 */
+	protected void sendHTTPRequest(int cid, ByteBuffer[] buffers) throws ProxyException {
+		Connection connection = getConnection(cid);
+		try {
+			connection.sendRequest(buffers);
+		} catch(IOException ioe) {
+			throw connection.failed(ioe);
+		}	
+	}
+	
 	/**
 	 * This method waits for a response sent hrough the connection specifed by the
 	 * connection ID (CID).
@@ -133,11 +345,36 @@ public class TCPConnections {
 	 * @throws ProxyException if an error occurs while receiving the response.
 	 */
 	protected HTTPResponse getHTTPResponse(int cid) throws ProxyException {
+		return getHTTPResponse(cid, -1);
+	}
+	
+	/**
+	 * This method waits for a response sent through the connection specified by the
+	 * connection ID (CID), buffering it within the in-flight memory budget.
+	 * The response is read up to the end of its body as its headers delimit it,
+	 * so that the connection can be closed without waiting for the server to close it,
+	 * and a chunked body is stored joined back together, with a Content-Length.
+	 * If the budget runs out, the response is relayed as-is to the connection
+	 * specified by relayCid instead, or dropped if relayCid is DROP_IF_TOO_LARGE,
+	 * or, if it's -1, reading pauses until other responses release their bytes.
+	 * A 304 is never relayed: it answers the proxy's own conditional request.
+	 * 
+	 * Responses returned by this method must be passed to releaseHTTPResponse
+	 * once they're no longer needed.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @param relayCid the connection to stream the response to if it can't be buffered, DROP_IF_TOO_LARGE, or -1.
+	 * @return the HTTP response received through the connection, or null if it was relayed or dropped.
+	 * @throws ProxyException if an error occurs while receiving the response.
+	 */
+	protected HTTPResponse getHTTPResponse(int cid, int relayCid) throws ProxyException {
 		try {
-			Connection connection = (Connection) connections.get(new Integer(cid));
-			if(connection == null)
-				throw new ProxyException("Non-existent TID: "+cid);
-			return connection.readResponse();
+			Connection connection = getConnection(cid);
+			Connection relay = null;
+			if(relayCid >= 0) {
+				relay = getConnection(relayCid);
+			}
+			return connection.readDelimitedResponse(relay, relayCid == DROP_IF_TOO_LARGE);
 		} catch(IOException ioe) {
 			ioe.printStackTrace();
 			System.out.println("ERROR: "+ioe.getMessage());
@@ -145,6 +382,132 @@ public class TCPConnections {
 		}
 	}
 	
+	/**
+	 * This method waits for a response sent through a persistent connection specified
+	 * by the connection ID (CID). Like getHTTPResponse, a response with a Content-Length
+	 * or a chunked body is read up to the end of its body only, and the connection can then carry another
+	 * request (see canKeepAlive). Other responses are read up to the end of the connection.
+	 * 
+	 * Responses returned by this method must be passed to releaseHTTPResponse
+	 * once they're no longer needed.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @param relayCid the connection to stream the response to if it can't be buffered, DROP_IF_TOO_LARGE, or -1.
+	 * @return the HTTP response received through the connection, or null if it was relayed or dropped.
+	 * @throws ProxyException if an error occurs while receiving the response.
+	 */
+	protected HTTPResponse getPersistentHTTPResponse(int cid, int relayCid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		Connection relay = null;
+		if(relayCid >= 0) {
+			relay = getConnection(relayCid);
+		}
+		try {
+			return connection.readDelimitedResponse(relay, relayCid == DROP_IF_TOO_LARGE);
+		} catch(IOException ioe) {
+			throw connection.failed(ioe);
+		}
+	}
+	
+	/**
+	 * This method tells whether the connection specified by the connection ID (CID)
+	 * can carry another request: the last response sent or received through it ended
+	 * where its headers said it would, and nothing was streamed through it since.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @return true if the connection can be kept open for another request.
+	 * @throws ProxyException if the connection does not exist.
+	 */
+	protected boolean canKeepAlive(int cid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		return connection.reusable;
+	}
+	
+	/**
+	 * This method tells whether a response was streamed to the connection specified
+	 * by the connection ID (CID) while being read, by getHTTPResponse or getPersistentHTTPResponse.
+	 * If reading then failed, the other end got part of a response and nothing else
+	 * should be sent to it.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @return true if bytes were relayed to the connection.
+	 * @throws ProxyException if the connection does not exist.
+	 */
+	protected boolean hasRelayed(int cid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		return connection.relayed;
+	}
+	
+	/**
+	 * This method returns the number of bytes sent so far through the connection
+	 * specified by the connection ID (CID), to a browser or a server.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @return the bytes written to the socket, not counting those still buffered.
+	 * @throws ProxyException if the connection does not exist.
+	 */
+	protected long getBytesSent(int cid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		return connection.counter.count;
+	}
+	
+	/**
+	 * This method gives back to the in-flight memory budget the bytes held
+	 * by a response returned by getHTTPResponse.
+	 * 
+	 * @param response the response that is no longer needed, or null.
+	 */
+	protected void releaseHTTPResponse(HTTPResponse response) {
+		if(response == null)
+			return;
+		budget.release(response.reservedBytes);
+		response.reservedBytes = 0;
+	}
+	
+	/**
+	 * @return the in-flight memory budget responses are read within.
+	 */
+	public MemoryBudget getMemoryBudget() {
+		return budget;
+	}
+	
+	/**
+	 * This method waits for the status line and headers of a response sent through the
+	 * connection specifed by the connection ID (CID), without reading its body.
+	 * Used for HEAD requests, whose responses don't have one.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @return the HTTP response received through the connection, without body.
+	 * @throws ProxyException if an error occurs while receiving the response.
+	 */
+	protected HTTPResponse getHTTPResponseHead(int cid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		try {
+			HTTPResponse response = connection.readResponseHead();
+			if (response.getStatus() == null)
+				throw new IOException("Connection closed before a response was received");
+			return response;
+		} catch(IOException ioe) {
+			throw connection.failed(ioe);
+		}
+	}
+	
+	/**
+	 * This method tells whether the last request sent through the connection specified
+	 * by the connection ID (CID) failed because the other end closed or reset the connection
+	 * before sending any byte of the response. Servers that keep connections open do so
+	 * when they time out idle ones, and the request can then be sent again on a new one,
+	 * if it's idempotent. Timeouts don't count: the server may still be working on it.
+	 *
+	 * @param cid the connection ID (CID).
+	 * @return true if no response was started when the connection was found closed.
+	 * @throws ProxyException if the connection does not exist.
+	 */
+	protected boolean wasClosedBeforeResponse(int cid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		return connection.closedBeforeResponse;
+	}
+	
 	/**
 	 * This method sends a response through the connection specifed by the
 	 * connection ID (CID).
@@ -155,9 +518,7 @@ public class TCPConnections {
 	 */
 	protected void sendHTTPResponse(int cid, HTTPResponse response) throws ProxyException {
 		try {
-			Connection connection = (Connection) connections.get(new Integer(cid));
-			if(connection == null)
-				throw new ProxyException("Non-existent TID: "+cid);
+			Connection connection = getConnection(cid);
 			connection.sendResponse(response);
 		} catch(IOException ioe) {
 			throw new ProxyException(ioe);
@@ -174,14 +535,63 @@ public class TCPConnections {
 	 * @throws ProxyException if an error occurs while establishing a new connection to a server.
 	 */
 	protected int establishConnectionToHTTPServer(String hostName, int port) throws HTTPServerException {
+		try {
+			return establishConnection(hostName, port, false);
+		} catch (ForbiddenHostException e) {
+			// only origins are checked
+			throw new HTTPServerException(e);
+		}
+	}
+	
+	/**
+	 * This method establish a connection with the HTTP server named in the URL a browser
+	 *  asked for, and returns the CID of the corresponding connection. Unlike
+	 *  establishConnectionToHTTPServer, the address of the server is checked first:
+	 *  browsers may not reach the admin endpoint through the proxy, nor, unless local
+	 *  origins are allowed, anything else listening on the loopback interface.
+	 * 
+	 * @param hostName the name of the remote HTTP server (e.g., www.google.com).
+	 * @param port the port to establish the connection with the remote HTTP server (usually, port = 80). 
+	 * @return the connection ID (CID) for the new connection.
+	 * @throws ForbiddenHostException if the server is one the proxy must not connect browsers to.
+	 * @throws HTTPServerException if an error occurs while establishing a new connection to the server.
+	 */
+	protected int establishConnectionToOrigin(String hostName, int port) throws HTTPServerException, ForbiddenHostException {
+		return establishConnection(hostName, port, true);
+	}
+	
+	/**
+	 * @param allowLocalOrigins whether browsers may reach servers on the loopback interface through the proxy.
+	 * @param adminPort the port of the admin endpoint, which they never may, or -1.
+	 */
+	public void setLocalOrigins(boolean allowLocalOrigins, int adminPort) {
+		this.allowLocalOrigins = allowLocalOrigins;
+		this.adminPort = adminPort;
+	}
+	
+	private int establishConnection(String hostName, int port, boolean origin) throws HTTPServerException, ForbiddenHostException {
 		// Establish a connection with the server id
 		Connection connection = null;
+		Socket socket = null;
+		ConnectEvent event = new ConnectEvent();
+		event.begin();
+		long start = System.nanoTime();
 		
 		try {			
 			InetAddress to = InetAddress.getByName(hostName);
+			event.resolveTime = System.nanoTime() - start;
+			// checked on the address we connect to, so that a name can't resolve to another one afterwards
+			if (origin && (to.isLoopbackAddress() || to.isAnyLocalAddress())
+					&& (!allowLocalOrigins || port == adminPort))
+				throw new ForbiddenHostException("Not forwarding requests to " + to.getHostAddress() + ":" + port);
 			
-			Socket socket = new Socket(to, port);			
+			// opened through a channel, so that requests can be sent with gathering writes
+			socket = SocketChannel.open().socket();
+			socket.connect(new InetSocketAddress(to, port), socketTimeout);			
 			connection = new Connection(socket);
+		} catch (ForbiddenHostException e) {
+			commitConnectEvent(event, -1, hostName, port);
+			throw e;
 		} catch (Exception ste) {
 			// If a problem occurs during establishing a socket, an exception
 			// is thrown but the socket is not closed. In this case, we 
@@ -189,17 +599,47 @@ public class TCPConnections {
 			try {
 				if (connection != null)
 					connection.close();
+				else if (socket != null)
+					socket.close();
 			} catch (IOException e) {
 			}
 			
+			commitConnectEvent(event, -1, hostName, port);
 			throw new HTTPServerException("Problem during the initialization of the connection: "+ste);
 		}
 		
 		int cid = nextCID.getAndIncrement();
-		connections.put(new Integer(cid), connection);
+		connection.cid = cid;
+		connection.host = hostName;
+		connections.put(cid, connection);
+		commitConnectEvent(event, cid, hostName, port);
 		return cid;
 	}
+	
+	private static void commitConnectEvent(ConnectEvent event, int cid, String hostName, int port) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.cid = cid;
+			event.host = hostName;
+			event.port = port;
+			event.success = cid != -1;
+			event.commit();
+		}
+	}
 			
+	/**
+	 * This method returns the IP address of the remote end of the connection
+	 * specified by the connection ID (CID).
+	 *
+	 * @param cid the connection ID (CID)
+	 * @return the remote IP address, eg. "192.168.1.12".
+	 * @throws ProxyException if the connection does not exist.
+	 */
+	protected String getRemoteAddress(int cid) throws ProxyException {
+		Connection connection = getConnection(cid);
+		return connection.socket.getInetAddress().getHostAddress();
+	}
+	
 	/**
 	 * This method closes the connection specified by the connection ID (CID).
 	 *
@@ -208,7 +648,7 @@ public class TCPConnections {
 	 */
 	protected void closeConnection(int cid) throws ProxyException {
 		try {
-			Connection connection = connections.remove(new Integer(cid));
+			Connection connection = connections.remove(cid);
 			if(connection == null)
 				throw new ProxyException("Non-existent CID: "+cid);
 			connection.close();
@@ -216,7 +656,19 @@ public class TCPConnections {
 			throw new ProxyException(ioe);
 		}
 	}
-	
+
+	/**
+	 * @param cid the connection ID (CID)
+	 * @return the connection specified by the connection ID.
+	 * @throws ProxyException if the connection does not exist.
+	 */
+	private Connection getConnection(int cid) throws ProxyException {
+		Connection connection = connections.get(cid);
+		if(connection == null)
+			throw new ProxyException("Non-existent CID: "+cid);
+		return connection;
+	}
+
 	/**
 	 * Inner class that represents a connection from a browser or to a HTTP server.
 	 */
@@ -225,94 +677,335 @@ public class TCPConnections {
 		protected final DataInputStream inStream;
 		protected final DataOutputStream outStream;
 		
-		// Sole constructor
+		// The client address this browser connection counts against, or null
+		protected final ClientLimiter.Client limits;
+		
+		// Counts the bytes written to the socket
+		protected final CountingOutputStream counter;
+		
+		// The CID of the connection, and the server it goes to if it isn't a browser's, for events
+		protected int cid = -1;
+		protected String host;
+		
+		// When the last request was sent through the connection, until the first byte of the response
+		protected long requestSentAt = 0;
+		
+		// Whether the last response through this connection left it ready for another request
+		protected volatile boolean reusable = false;
+		
+		// Whether a response was streamed to this connection as it was being read
+		protected volatile boolean relayed = false;
+		
+		// Whether a byte of the response to the last request was received, and whether
+		// the exchange failed on a closed connection before that, see wasClosedBeforeResponse
+		protected boolean responseStarted = false;
+		protected boolean closedBeforeResponse = false;
+		
+		// Constructor for connections to HTTP servers
 		protected Connection(Socket socket) throws IOException {
+			this(socket, null);
+		}
+		
+		// Constructor for browser connections, whose output is throttled to the client's bandwidth limit
+		protected Connection(Socket socket, ClientLimiter.Client limits) throws IOException {
 			this.socket = socket;
+			this.limits = limits;
 			socket.setTcpNoDelay(false);
-			socket.setSoTimeout(DEFAULT_SOCKET_TIMEOUT);
+			socket.setSoTimeout(socketTimeout);
 			inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-			outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			OutputStream out = socket.getOutputStream();
+			if (limits != null)
+				out = new ClientLimiter.ThrottledOutputStream(out, limits);
+			counter = new CountingOutputStream(out);
+			outStream = new DataOutputStream(new BufferedOutputStream(counter));
 		}
 
 		// Read a request sent through the connection
 		synchronized public HTTPRequest readRequest() throws IOException, ProxyException, NotImplementedException {
-		    BufferedReader bin = new BufferedReader(new InputStreamReader(inStream));
-
-		    // Parse the request
-			String line = bin.readLine();
-			if ((line != null) && (line.length() != 0)) {
-				// First line
-				// Parse the method
-				int index = line.indexOf(" ");
-				String method = line.substring(0, index).trim();
-				if ((!method.toUpperCase().equals("GET")) &&
-					(!method.toUpperCase().equals("HEAD")))
-					throw new NotImplementedException(method);
-				
-				// Parse the URL
-				String remainder = line.substring(index).trim();
-				index = remainder.indexOf(" ");
-				String url = remainder.substring(0, index).trim();
-
-				// Parse the Version
-				String httpVersion = remainder.substring(index).trim();
-				if (!httpVersion.endsWith("1.1"))
-					throw new NotImplementedException(httpVersion);
-
-				// Parse the headers
-				StringBuffer headers = new StringBuffer();
-				while ((line = bin.readLine()) != null) {
-					if (line.length() == 0)
-						break;
-
-					// Suppress headers to maintain connection or concerning Proxy-Connection!
-					if ((!line.toUpperCase().contains("KEEP-ALIVE")) &&
-						(!line.toUpperCase().contains("PROXY-CONNECTION")) &&
-						(!line.toUpperCase().contains("CONNECTION: ")))	
-						headers.append(line + "\r\n");
+			// Read up to the empty line ending the headers, keeping the bytes as they are:
+			// the request will be forwarded as slices of them
+			byte[] raw = new byte[REQUEST_BUFFER_SIZE];
+			int length = 0;
+			int newlines = 0;
+			int b;
+			
+			while (newlines < 2 && (b = inStream.read()) != -1) {
+				if (length == raw.length) {
+					if (length >= MAX_REQUEST_SIZE)
+						throw new ProxyException("Request headers too large");
+					raw = Arrays.copyOf(raw, length * 2);
 				}
-				
-				// Add an header specifying that connection must be closed after each interaction
-				headers.append(new String("Connection: close \r\n"));
-				
-				return new HTTPRequest(method, url, httpVersion, headers.toString());
+				raw[length++] = (byte) b;
+				if (b == '\n')
+					newlines++;
+				else if (b != '\r')
+					newlines = 0;
 			}
 			
-			throw new ProxyException("Problem while reading a request!");
+			return HTTPRequest.parse(raw, length);
 		}
 		
 		// Send a request through the connection
 		synchronized public void sendRequest(HTTPRequest request) throws IOException {
+			responseStarted = false;
+			closedBeforeResponse = false;
 		    outStream.write(request.getBytes());
 			outStream.flush();
+			requestSentAt = System.nanoTime();
+		}
+		
+		// Send a request made of several buffers through the connection, in a single
+		// gathering write when the socket has a channel
+		synchronized public void sendRequest(ByteBuffer[] buffers) throws IOException {
+			responseStarted = false;
+			closedBeforeResponse = false;
+			SocketChannel channel = socket.getChannel();
+			if (channel == null) {
+				for (ByteBuffer buffer : buffers)
+					outStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				outStream.flush();
+				requestSentAt = System.nanoTime();
+				return;
+			}
+			
+			outStream.flush();
+			long remaining = 0;
+			for (ByteBuffer buffer : buffers)
+				remaining += buffer.remaining();
+			counter.count += remaining;
+			while (remaining > 0)
+				remaining -= channel.write(buffers);
+			requestSentAt = System.nanoTime();
 		}
 		
-		// Read a response sent through the connection
-		synchronized public HTTPResponse readResponse() throws IOException, ProxyException {
-		    ByteArrayOutputStream result = new ByteArrayOutputStream();
-			byte [] response = new byte[16384];
-			int bytesRead = 0;
+		// Read a response, up to the end of its body as its headers delimit it, so that the
+		// connection can be reused unless the body ends with the connection. The response is
+		// buffered within the in-flight memory budget, a chunked body joined back together.
+		// Returns null if it didn't fit in the budget and was streamed to the relay instead,
+		// or dropped, closing the connection.
+		synchronized public HTTPResponse readDelimitedResponse(Connection relay, boolean drop) throws IOException, ProxyException {
+			HTTPResponse parsed = readResponseHead();
+			byte[] head = parsed.getBytes();
+			if (head.length == 0)
+				throw new IOException("Connection closed before a response was received");
+			// a 304 answers our own conditional request, it's not for the client as is, and has no body anyway
+			if ("304".equals(parsed.getStatus()))
+				relay = null;
+			long length = parsed.getContentLength();
+			if (length < 0 || length > Integer.MAX_VALUE - head.length)
+				return readFramedResponse(parsed, relay, drop);
 			
-			while ((bytesRead = inStream.read(response)) != -1) {
-				result.write(response, 0, bytesRead);
-				result.flush();
+			int size = head.length + (int) length;
+			if (!budget.tryReserve(size)) {
+				if (relay != null) {
+					budget.countStreamedResponse();
+					relay.reusable = false;
+					relay.relayed = true;
+					relay.outStream.write(head);
+					byte[] buffer = new byte[readBufferSize];
+					long remaining = length;
+					while (remaining > 0) {
+						int bytesRead = inStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if (bytesRead == -1)
+							throw new IOException("Connection closed before the end of the response");
+						relay.outStream.write(buffer, 0, bytesRead);
+						remaining -= bytesRead;
+					}
+					relay.outStream.flush();
+					reusable = true;
+					return null;
+				}
+				if (drop) {
+					reusable = false;
+					return null;
+				}
+				budget.reserve(size, socketTimeout);
+			}
+			
+			boolean done = false;
+			try {
+				byte[] content = Arrays.copyOf(head, size);
+				inStream.readFully(content, head.length, (int) length);
+				parsed = new HTTPResponse(content);
+				parsed.reservedBytes = size;
+				reusable = true;
+				done = true;
+				return parsed;
+			} finally {
+				if (!done)
+					budget.release(size);
+			}
+		}
+		
+		// Read a chunked body, or a body ending with the connection, after the given head.
+		// Whatever is read is looked at by a framer to find where the body ends, and the
+		// bytes past it are left in the stream for the next response.
+		// Returns null if it didn't fit in the budget and was streamed to the relay instead,
+		// or dropped, closing the connection.
+		synchronized private HTTPResponse readFramedResponse(HTTPResponse parsed, Connection relay, boolean drop) throws IOException, ProxyException {
+			byte[] head = parsed.getBytes();
+			BodyFramer framer = BodyFramer.forResponse(parsed, BodyFramer.PASS_THROUGH);
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			OutputStream target = result;
+			byte[] buffer = new byte[readBufferSize];
+			ByteBuffer in = ByteBuffer.wrap(buffer);
+			reusable = false;
+			if (!drop)
+				budget.reserve(head.length, socketTimeout);
+			else if (!budget.tryReserve(head.length))
+				return null;
+			long reserved = head.length;
+			boolean done = false;
+			result.write(head);
+			
+			try {
+				while (!framer.isDone()) {
+					inStream.mark(buffer.length);
+					int bytesRead = inStream.read(buffer);
+					if (bytesRead == -1) {
+						framer.finish(null);
+						break;
+					}
+					in.clear();
+					in.limit(bytesRead);
+					framer.process(in, null);
+					if (in.hasRemaining()) {
+						// the end of the body, and the start of something else
+						bytesRead = in.position();
+						inStream.reset();
+						inStream.skipBytes(bytesRead);
+					}
+					
+					if (target == result) {
+						if (budget.tryReserve(bytesRead)) {
+							reserved += bytesRead;
+						} else if (relay != null) {
+							// Out of budget: hand what we have to the client and stream the rest
+							budget.countStreamedResponse();
+							relay.reusable = false;
+							relay.relayed = true;
+							result.writeTo(relay.outStream);
+							result = null;
+							budget.release(reserved);
+							reserved = 0;
+							target = relay.outStream;
+						} else if (drop) {
+							// what was reserved is released below
+							return null;
+						} else {
+							// Nowhere to stream to: stop reading until some memory is released,
+							// TCP flow control will hold the server back meanwhile
+							budget.reserve(bytesRead, socketTimeout);
+							reserved += bytesRead;
+						}
+					}
+					target.write(buffer, 0, bytesRead);
+				}
+				
+				reusable = !framer.isCloseDelimited();
+				if (result == null) {
+					relay.outStream.flush();
+					done = true;
+					return null;
+				}
+				
+				// Store a chunked body as a plain one, which takes less memory and can be served in ranges
+				parsed = new HTTPResponse(result.toByteArray()).dechunked();
+				long size = parsed.getBytes().length;
+				if (size < reserved) {
+					budget.release(reserved - size);
+					reserved = size;
+				}
+				parsed.reservedBytes = reserved;
+				done = true;
+				return parsed;
+			} finally {
+				if (!done)
+					budget.release(reserved);
+			}
+		}
+		
+		// Record how long the server took to start answering the last request, the first time it's called after it
+		private void firstByte() {
+			responseStarted = true;
+			if (requestSentAt == 0)
+				return;
+			FirstByteEvent event = new FirstByteEvent();
+			if (event.shouldCommit()) {
+				event.cid = cid;
+				event.host = host;
+				event.waitTime = System.nanoTime() - requestSentAt;
+				event.commit();
+			}
+			requestSentAt = 0;
+		}
+		
+		// Record how an exchange through the connection failed, and wrap the error
+		synchronized ProxyException failed(IOException ioe) {
+			closedBeforeResponse = !responseStarted && !(ioe instanceof SocketTimeoutException);
+			return new ProxyException(ioe);
+		}
+		
+		// Read the status line and headers of a response, up to the empty line
+		synchronized public HTTPResponse readResponseHead() throws IOException, ProxyException {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			int newlines = 0;
+			int b;
+			
+			while (newlines < 2 && (b = inStream.read()) != -1) {
+				if (result.size() == 0)
+					firstByte();
+				result.write(b);
+				if (b == '\n')
+					newlines++;
+				else if (b != '\r')
+					newlines = 0;
 			}
 			
-		    // Parse the response from the result
 			return new HTTPResponse(result.toByteArray());
 		}
 		
 		// Send a response through the connection
 		synchronized public void sendResponse(HTTPResponse response) throws IOException {
-		    outStream.write(response.getBytes());
+			reusable = response.isSelfDelimited();
+		    response.writeTo(outStream);
 			outStream.flush();
 		}
 
 		// Close the connection
 		public void close() throws IOException {
-			outStream.close();
-			inStream.close();
-			socket.close();
+			if (limits != null)
+				limits.disconnect();
+			try {
+				outStream.close();
+				inStream.close();
+			} finally {
+				socket.close();
+			}
+		}
+	}
+	
+	/**
+	 * Output stream counting the bytes written through it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		// Only written by the thread holding the connection, read for statistics
+		volatile long count = 0;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
 		}
 	}
 }
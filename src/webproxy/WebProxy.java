@@ -1,9 +1,15 @@
 package webproxy;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
 import webproxy.exceptions.ProxyException;
 
 public class WebProxy {
@@ -14,67 +20,177 @@ public class WebProxy {
 	/** 'cause System.out.println is ugly */
 	Logger logger = Logger.getLogger(getClass().getSimpleName());
 
-	/** Used to dispatch jobs between worker threads */
-	RequestBuffer buffer;
+	/** Independent parts of the proxy, each with its own listeners, workers and cache */
+	ProxyShard[] shards;
+	
+	/** Limits of each client address, shared by all shards since a client's connections may land on any */
+	ClientLimiter limiter = new ClientLimiter();
+	
+	/** Saves the hottest URLs, and fetches them again on startup, or null if disabled */
+	CacheWarmer warmer;
 	
-	/** Handles all TCP connection establishing/closing and HTTP response/request reading/sending */
-	TCPConnections connections;
+	/** Settings we were started with, some of which can change live */
+	ProxyConfig config;
 	
 	/** Filtered out domains */
 	ArrayList<String> blockedDomains = new ArrayList<String>();
 	
 	/**
-	 * @param args
+	 * @param args see ProxyConfig, or run with --help
 	 */
 	public static void main(String[] args) {
-		// TODO: make number of worker threads specifiable by command-line option
-		// TODO: make port specifiable by command-line option
-		// TODO: display help when -h / --help
-		
-		// TODO: make semaphore/monitor selectable by command-line option
-		//RequestBuffer buffer = new MonitorRequestBuffer();
-		RequestBuffer buffer = new SemaphoreRequestBuffer();
+		ProxyConfig config = null;
+		try {
+			config = ProxyConfig.fromCommandLine(args);
+		} catch (ProxyException e) {
+			System.err.println(e.getMessage());
+			System.err.println(ProxyConfig.getUsage());
+			System.exit(1);
+		}
+		if (config == null) {
+			System.out.println(ProxyConfig.getUsage());
+			return;
+		}
 		
-		new WebProxy(DEFAULT_PORT, 20, buffer);
+		new WebProxy(config);
 	}
 	
 	public WebProxy(int port, int numThreads, RequestBuffer buffer) {
-		logger.setLevel(Level.FINEST);
-		this.buffer = buffer;
+		this(ProxyConfig.defaults(port, numThreads), new RequestBuffer[] { buffer });
+	}
+	
+	/**
+	 * Start a proxy with one request buffer per shard, of the configured implementation.
+	 */
+	public WebProxy(ProxyConfig config) {
+		this(config, null);
+	}
+	
+	private WebProxy(ProxyConfig config, RequestBuffer[] buffers) {
+		this.config = config;
 		
+		int[] ports = config.getPorts();
+		int shardCount = getShardCount(config);
+		shards = new ProxyShard[shardCount];
 		try {
-			connections = new TCPConnections(port);
+			for(int i = 0; i < shardCount; i++) {
+				RequestBuffer buffer = buffers != null ? buffers[i] : config.createRequestBuffer();
+				shards[i] = new ProxyShard(i, ports, shardCount > 1, buffer);
+				shards[i].connections.setClientLimiter(limiter);
+			}
 		} catch (ProxyException e) {
-			logger.log(Level.SEVERE, "Couldn't start proxy listening on port " + port + ", giving up...");
+			logger.log(Level.SEVERE, "Couldn't start proxy listening on ports " + config.get("ports") + ", giving up...");
 			System.exit(1);
 		}
+		applyLiveSettings();
+		
+		List<String> peers = config.getPeers();
+		if (!peers.isEmpty()) {
+			HashRing ring = new HashRing(peers);
+			for (ProxyShard shard : shards)
+				shard.joinCluster(config.getPeerName(), ring);
+			logger.log(Level.INFO, "Sharing the cache with " + peers + " as " + config.getPeerName());
+		}
+		
+		if (config.get("routes").length() != 0) {
+			try {
+				for (ProxyShard shard : shards)
+					shard.enableReverseProxy(config);
+			} catch (ProxyException e) {
+				logger.log(Level.SEVERE, "Invalid reverse-proxy settings: " + e.getMessage());
+				System.exit(1);
+			}
+			logger.log(Level.INFO, "Reverse-proxying " + config.get("routes"));
+		}
+		
+		for (ProxyShard shard : shards)
+			shard.registerMBeans(shardCount > 1 ? ",shard=" + shard.index : "");
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(limiter, new ObjectName("webproxy:type=ClientLimiter"));
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Couldn't register the client limiter MBean: " + e);
+		}
 		
-		for(int i = 0; i < numThreads; i++) {
-			new HTTPJobWorker(connections, buffer);
+		int adminPort = config.getInt("admin.port");
+		if (adminPort != -1) {
+			try {
+				new AdminServer(this, adminPort).start();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Couldn't start the admin endpoint on port " + adminPort + ": " + e);
+			}
 		}
 		
-		logger.log(Level.INFO, "Listening on port " + DEFAULT_PORT);
+		// the first port of the first shard is served by this thread, the others by their own
+		int numThreads = config.getInt("workers");
+		for (ProxyShard shard : shards)
+			shard.start(numThreads);
+		
+		// in the background, while we already serve clients
+		if (config.get("warmup.file").length() != 0) {
+			warmer = new CacheWarmer(shards, config);
+			warmer.start();
+		}
+		
+		logger.log(Level.INFO, "Listening on port(s) " + config.get("ports") + (shardCount > 1 ? " with " + shardCount + " shards" : ""));
 		
 		while (true) {
-			acceptConnection();
+			shards[0].acceptConnection(0);
 		}
 		
 	}
+	
+	/**
+	 * @return the number of shards to run, one per processor if the "shards" setting is 0
+	 */
+	static int getShardCount(ProxyConfig config) {
+		int shards = config.getInt("shards");
+		return shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Apply the current value of the settings that can change while we run.
+	 */
+	void applyLiveSettings() {
+		for (ProxyShard shard : shards)
+			shard.applyLiveSettings(config, shards.length);
+		limiter.configure(config.getInt("client.max.connections"), config.getInt("client.max.rps"),
+				config.getInt("client.burst"), config.getSize("client.max.bandwidth"), config.getInt("workers"));
+		
+		Level level = Level.parse(config.get("log.level"));
+		Logger root = Logger.getLogger("");
+		root.setLevel(level);
+		for (Handler handler : root.getHandlers())
+			handler.setLevel(level);
+	}
+	
+	public ProxyConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * @return a human-readable summary of memory usage, per shard if there are several,
+	 *  of the clients that hit their limits, and of the cache warm-up
+	 */
+	public String getStats() {
+		StringBuffer result = new StringBuffer();
+		if (shards.length == 1) {
+			result.append(shards[0].getStats());
+		} else {
+			for (ProxyShard shard : shards)
+				result.append("shard " + shard.index + ":\n" + shard.getStats());
+		}
+		result.append(limiter + "\n");
+		if (warmer != null)
+			result.append(warmer + "\n");
+		return result.toString();
+	}
 
 	public void acceptConnection() {
-		try {
-			int clientCid = connections.getNewClientConnection();
-			HTTPRequest request = connections.getHTTPRequest(clientCid);
-			
-			logger.log(Level.FINEST, "Got request: ");
-			logger.log(Level.FINEST, new String(request.getBytes()));
-			
-			buffer.queue(new HTTPJob(request, clientCid));
-		} catch (ProxyException e) {
-			// FIXME: handle that better
-			e.printStackTrace();
-		}
-		
+		acceptConnection(0);
+	}
+
+	public void acceptConnection(int listener) {
+		shards[0].acceptConnection(listener);
 	}
 
 }
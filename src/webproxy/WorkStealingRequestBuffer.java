@@ -0,0 +1,183 @@
+package webproxy;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implementation of RequestBuffer with one deque per worker thread.
+ * 
+ * Jobs are spread over the workers' deques in turn. Workers take jobs from the
+ * head of their own deque, and when it's empty, steal from the tail of the others'
+ * before parking, so there is no single structure all threads contend on.
+ * 
+ * Workers are known by their thread: each thread calling pop() gets its deque
+ * the first time it does, so the worker loop doesn't need to change.
+ * 
+ * @author Amos Wenger
+ */
+public class WorkStealingRequestBuffer implements RequestBuffer, WorkStealingRequestBufferMBean {
+
+	/** How long an idle worker parks before pop() gives up and returns null */
+	static final long PARK_NANOS = 500L * 1000L * 1000L;
+	
+	/** How many times an idle worker looks for jobs again before parking, since waking it up is costly */
+	static final int SPINS = 64;
+	
+	/**
+	 * A worker thread and its deque.
+	 */
+	static class Worker {
+		final Thread thread = Thread.currentThread();
+		final ConcurrentLinkedDeque<HTTPJob> jobs = new ConcurrentLinkedDeque<HTTPJob>();
+		final Random random = new Random();
+		volatile boolean parked = false;
+	}
+	
+	final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+	
+	/** Parked workers, to wake one up when a job lands on a busy worker's deque */
+	final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+	
+	/** Jobs queued before any worker showed up */
+	final ConcurrentLinkedQueue<HTTPJob> unassigned = new ConcurrentLinkedQueue<HTTPJob>();
+	
+	final ThreadLocal<Worker> local = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			Worker worker = new Worker();
+			workers.add(worker);
+			return worker;
+		}
+	};
+	
+	final AtomicInteger nextWorker = new AtomicInteger();
+	
+	final AtomicLong localJobs = new AtomicLong();
+	final AtomicLong stolenJobs = new AtomicLong();
+	final AtomicLong parks = new AtomicLong();
+	
+	@Override
+	public void queue(HTTPJob job) {
+		int count = workers.size();
+		if (count == 0) {
+			unassigned.add(job);
+			return;
+		}
+		
+		Worker target = workers.get((nextWorker.getAndIncrement() & Integer.MAX_VALUE) % count);
+		target.jobs.addLast(job);
+		if (target.parked) {
+			LockSupport.unpark(target.thread);
+		} else {
+			// its owner is busy: let someone idle steal it
+			Worker thief = idle.poll();
+			if (thief != null)
+				LockSupport.unpark(thief.thread);
+		}
+	}
+
+	@Override
+	public HTTPJob pop() {
+		Worker me = local.get();
+		for (int i = 0; i < SPINS; i++) {
+			HTTPJob job = take(me);
+			if (job != null)
+				return job;
+			Thread.yield();
+		}
+		
+		// Advertise we're idle, then look again so a job queued meanwhile isn't missed
+		me.parked = true;
+		idle.add(me);
+		HTTPJob job = take(me);
+		if (job == null) {
+			parks.incrementAndGet();
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		me.parked = false;
+		idle.remove(me);
+		
+		return job != null ? job : take(me);
+	}
+	
+	@Override
+	public boolean waitsInPop() {
+		// parks up to PARK_NANOS
+		return true;
+	}
+	
+	/**
+	 * @return a job from our own deque, or stolen from another one, or null if there are none
+	 */
+	private HTTPJob take(Worker me) {
+		HTTPJob job = me.jobs.pollFirst();
+		if (job == null)
+			job = unassigned.poll();
+		if (job != null) {
+			localJobs.incrementAndGet();
+			return job;
+		}
+		
+		int count = workers.size();
+		int start = me.random.nextInt(count);
+		for (int i = 0; i < count; i++) {
+			Worker victim = workers.get((start + i) % count);
+			if (victim == me)
+				continue;
+			job = victim.jobs.pollLast();
+			if (job != null) {
+				stolenJobs.incrementAndGet();
+				return job;
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public int getWorkers() {
+		return workers.size();
+	}
+	
+	@Override
+	public int getQueuedJobs() {
+		int count = unassigned.size();
+		for (Worker worker : workers)
+			count += worker.jobs.size();
+		return count;
+	}
+	
+	@Override
+	public long getLocalJobs() {
+		return localJobs.get();
+	}
+	
+	@Override
+	public long getStolenJobs() {
+		return stolenJobs.get();
+	}
+	
+	@Override
+	public double getLocality() {
+		long local = localJobs.get();
+		long total = local + stolenJobs.get();
+		return total == 0 ? 1 : (double) local / total;
+	}
+	
+	@Override
+	public long getParks() {
+		return parks.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("queued jobs: %d on %d workers, local: %d, stolen: %d, locality: %.3f, parks: %d",
+				getQueuedJobs(), getWorkers(), getLocalJobs(), getStolenJobs(), getLocality(), getParks());
+	}
+	
+}
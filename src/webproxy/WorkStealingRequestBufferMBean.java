@@ -0,0 +1,41 @@
+package webproxy;
+
+/**
+ * Management interface of WorkStealingRequestBuffer, to see how often
+ * workers process their own jobs rather than others'.
+ * 
+ * @author Amos Wenger
+ */
+public interface WorkStealingRequestBufferMBean {
+
+	/**
+	 * @return the number of workers that have a deque
+	 */
+	public int getWorkers();
+	
+	/**
+	 * @return the number of jobs waiting to be processed, in all deques
+	 */
+	public int getQueuedJobs();
+	
+	/**
+	 * @return the number of jobs processed by the worker they were given to
+	 */
+	public long getLocalJobs();
+	
+	/**
+	 * @return the number of jobs taken from the deque of another worker
+	 */
+	public long getStolenJobs();
+	
+	/**
+	 * @return the fraction of jobs processed by the worker they were given to
+	 */
+	public double getLocality();
+	
+	/**
+	 * @return the number of times a worker found no job and parked
+	 */
+	public long getParks();
+	
+}
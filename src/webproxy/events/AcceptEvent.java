@@ -0,0 +1,31 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded when a browser connection is accepted, and let in by the client limiter.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.Accept")
+@Label("Accept")
+@Category({ "WebProxy", "Job" })
+@Description("A browser connection was accepted")
+@StackTrace(false)
+public class AcceptEvent extends Event {
+
+	@Label("CID")
+	public int cid;
+
+	@Label("Client Address")
+	public String clientAddress;
+
+	@Label("Port")
+	public int port;
+
+}
@@ -0,0 +1,43 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Spans the handling of a request by a worker, from the queue to the closing or hand-off of the client connection.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.Complete")
+@Label("Complete")
+@Category({ "WebProxy", "Job" })
+@Description("Handling of a request by a worker")
+@StackTrace(false)
+public class CompleteEvent extends Event {
+
+	@Label("CID")
+	public int cid;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Host")
+	public String host;
+
+	@Label("URL")
+	public String url;
+
+	@Label("Source")
+	@Description("Where the response came from: cache, peer, origin, backend, or none if there was an error")
+	public String source;
+
+	@Label("Bytes Sent")
+	@DataAmount
+	public long bytesSent;
+
+}
@@ -0,0 +1,40 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Spans the opening of a connection to a server, name resolution included.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.Connect")
+@Label("Connect")
+@Category({ "WebProxy", "Job" })
+@Description("Opening of a connection to a server, DNS lookup included")
+@StackTrace(false)
+public class ConnectEvent extends Event {
+
+	@Label("CID")
+	@Description("The new connection, -1 if it couldn't be opened")
+	public int cid;
+
+	@Label("Host")
+	public String host;
+
+	@Label("Port")
+	public int port;
+
+	@Label("Resolve Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long resolveTime;
+
+	@Label("Success")
+	public boolean success;
+
+}
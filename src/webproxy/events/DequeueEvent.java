@@ -0,0 +1,33 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when a worker takes a request from the queue, with the time it waited there.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.Dequeue")
+@Label("Dequeue")
+@Category({ "WebProxy", "Job" })
+@Description("A worker took a request from the queue")
+@StackTrace(false)
+public class DequeueEvent extends Event {
+
+	@Label("CID")
+	public int cid;
+
+	@Label("Host")
+	public String host;
+
+	@Label("Queue Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long queueTime;
+
+}
@@ -0,0 +1,32 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded when a parsed request is queued for the workers.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.Enqueue")
+@Label("Enqueue")
+@Category({ "WebProxy", "Job" })
+@Description("A request was queued for the workers")
+@StackTrace(false)
+public class EnqueueEvent extends Event {
+
+	@Label("CID")
+	public int cid;
+
+	@Label("Host")
+	public String host;
+
+	@Label("Priority")
+	@Description("0 for requests we can answer cheaply, 1 for the others")
+	public int priority;
+
+}
@@ -0,0 +1,34 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded when the first byte of a response comes in from a server, with the time since the request was sent.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.FirstByte")
+@Label("First Byte")
+@Category({ "WebProxy", "Job" })
+@Description("The first byte of a response came in from a server")
+@StackTrace(false)
+public class FirstByteEvent extends Event {
+
+	@Label("CID")
+	@Description("The connection to the server")
+	public int cid;
+
+	@Label("Host")
+	public String host;
+
+	@Label("Wait Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long waitTime;
+
+}
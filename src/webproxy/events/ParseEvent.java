@@ -0,0 +1,39 @@
+package webproxy.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Spans the reading of a request, from the first byte waited for to the parsed headers.
+ *
+ * @author Amos Wenger
+ */
+@Name("webproxy.Parse")
+@Label("Parse")
+@Category({ "WebProxy", "Job" })
+@Description("Reading and parsing of a request")
+@StackTrace(false)
+public class ParseEvent extends Event {
+
+	@Label("CID")
+	public int cid;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Host")
+	public String host;
+
+	@Label("URL")
+	public String url;
+
+	@Label("Request Bytes")
+	@DataAmount
+	public long bytes;
+
+}
@@ -0,0 +1,18 @@
+package webproxy.exceptions;
+
+/**
+ * This exception is thrown when the proxy is asked to connect to
+ * a server it must not forward requests to, such as its own admin
+ * endpoint or other services only listening on the loopback interface.
+ *
+ * @author Amos Wenger
+ */
+
+public class ForbiddenHostException extends ProxyException {
+	private static final long serialVersionUID = 3170527946238912185L;
+
+	public ForbiddenHostException(String message) {
+		super(message);
+    }
+
+}
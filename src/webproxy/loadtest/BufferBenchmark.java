@@ -0,0 +1,107 @@
+package webproxy.loadtest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import webproxy.HTTPJob;
+import webproxy.ProxyConfig;
+import webproxy.RequestBuffer;
+
+/**
+ * Micro-benchmark of the RequestBuffer implementations: one acceptor thread
+ * queues jobs as fast as it can while N worker threads pop and process them,
+ * for N from 4 to 64. Reports throughput and the time jobs spent in the buffer.
+ * 
+ * Each configuration is run a few times first to let the JIT settle, then measured.
+ * 
+ * Usage: BufferBenchmark [jobs per run] [work per job, in microseconds] [implementations...]
+ * 
+ * @author Amos Wenger
+ */
+public class BufferBenchmark {
+
+	static final int[] WORKER_COUNTS = { 4, 8, 16, 32, 64 };
+	
+	static final int WARMUP_RUNS = 3;
+	
+	/** Sink for the simulated work, so the JIT can't drop it */
+	static volatile long sink;
+	
+	public static void main(String[] args) throws InterruptedException {
+		int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int workMicros = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		String[] implementations = { "semaphore", "monitor", "fair", "stealing" };
+		if (args.length > 2) {
+			implementations = new String[args.length - 2];
+			System.arraycopy(args, 2, implementations, 0, implementations.length);
+		}
+		
+		System.out.println(String.format("%d jobs per run, %dus of work per job", jobs, workMicros));
+		System.out.println(String.format("%-10s %8s %14s %12s %12s", "buffer", "workers", "jobs/s", "p50 wait", "p99 wait"));
+		for (String implementation : implementations) {
+			for (int workers : WORKER_COUNTS) {
+				for (int i = 0; i < WARMUP_RUNS; i++)
+					run(implementation, workers, jobs / 10, workMicros);
+				Result result = run(implementation, workers, jobs, workMicros);
+				System.out.println(String.format("%-10s %8d %14.0f %10.1fus %10.1fus", implementation, workers,
+						result.jobsPerSecond, (double) result.waits.getValueAtPercentile(50),
+						(double) result.waits.getValueAtPercentile(99)));
+			}
+		}
+	}
+	
+	static class Result {
+		double jobsPerSecond;
+		LatencyHistogram waits;
+	}
+	
+	static Result run(String implementation, int workerCount, final int jobs, final int workMicros) throws InterruptedException {
+		final RequestBuffer buffer = ProxyConfig.createRequestBuffer(implementation);
+		final LatencyHistogram waits = new LatencyHistogram();
+		final AtomicLong processed = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		Thread[] workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (processed.get() < jobs) {
+						HTTPJob job = buffer.pop();
+						if (job == null) {
+							Thread.yield();
+							continue;
+						}
+						waits.record((System.nanoTime() - job.getQueuedAt()) / 1000L);
+						work(workMicros);
+						if (processed.incrementAndGet() == jobs)
+							done.countDown();
+					}
+				}
+			});
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < jobs; i++)
+			buffer.queue(new HTTPJob(null, i, "10.0.0." + (i % 16), HTTPJob.PRIORITY_NORMAL));
+		// workers parked in the buffer may take a while to notice, they're not waited for
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		
+		Result result = new Result();
+		result.jobsPerSecond = jobs / (elapsed / 1e9);
+		result.waits = waits;
+		return result;
+	}
+	
+	static void work(int micros) {
+		long end = System.nanoTime() + micros * 1000L;
+		long value = 0;
+		while (System.nanoTime() < end)
+			value++;
+		sink += value;
+	}
+	
+}
@@ -0,0 +1,172 @@
+package webproxy.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import webproxy.BodyFramer;
+import webproxy.exceptions.ProxyException;
+
+/**
+ * Micro-benchmark of BodyFramer: bodies framed by a Content-Length, in large
+ * chunks, in tiny chunks, and in chunks followed by trailers, fed to it in
+ * slices as they would come off a socket, in each of its modes. Reports how
+ * fast the bytes go through, and how long a whole message takes.
+ *
+ * Before measuring, the output of each mode is checked: dechunking gives back
+ * the body, and rechunking then dechunking too.
+ *
+ * Usage: FramingBenchmark [body size, in bytes] [slice size, in bytes] [messages per run]
+ *
+ * @author Amos Wenger
+ */
+public class FramingBenchmark {
+
+	static final int WARMUP_RUNS = 10;
+
+	static final String[] MODE_NAMES = { "pass", "pass-copy", "dechunk", "rechunk" };
+
+	/** Sink for the results, so the JIT can't drop the work */
+	static volatile long sink;
+
+	/**
+	 * A body and the way it's framed on the wire.
+	 */
+	static class Input {
+		final String name;
+		final boolean chunked;
+		final byte[] wire;
+
+		Input(String name, boolean chunked, byte[] wire) {
+			this.name = name;
+			this.chunked = chunked;
+			this.wire = wire;
+		}
+
+		BodyFramer framer(int mode) {
+			return chunked ? BodyFramer.forChunked(mode) : BodyFramer.forLength(wire.length, mode);
+		}
+	}
+
+	public static void main(String[] args) throws ProxyException {
+		int bodySize = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+		int sliceSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		byte[] body = new byte[bodySize];
+		for (int i = 0; i < body.length; i++)
+			body[i] = (byte) ('a' + i % 26);
+		Input[] inputs = {
+			new Input("length", false, body),
+			new Input("chunks-1k", true, chunk(body, 1024, null)),
+			new Input("chunks-16", true, chunk(body, 16, null)),
+			new Input("trailers", true, chunk(body, 1024, "Checksum: 1234\r\nExpires: 0\r\n")),
+		};
+
+		for (Input input : inputs)
+			check(input, body, sliceSize);
+
+		System.out.println(String.format("%d bytes per body, fed in %d byte slices, %d messages per run", bodySize, sliceSize, messages));
+		System.out.println(String.format("%-10s %-10s %12s %14s", "input", "mode", "MB/s", "us/message"));
+		for (Input input : inputs) {
+			for (int m = 0; m < MODE_NAMES.length; m++) {
+				for (int i = 0; i < WARMUP_RUNS; i++)
+					run(input, m, sliceSize, messages);
+				long elapsed = run(input, m, sliceSize, messages);
+				System.out.println(String.format("%-10s %-10s %12.1f %14.1f", input.name, MODE_NAMES[m],
+						(double) input.wire.length * messages / (elapsed / 1e9) / (1024 * 1024),
+						elapsed / 1000.0 / messages));
+			}
+		}
+	}
+
+	/**
+	 * @return the body in chunks of the given size, followed by the given trailers.
+	 */
+	static byte[] chunk(byte[] body, int chunkSize, String trailers) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (int offset = 0; offset < body.length; offset += chunkSize) {
+			int length = Math.min(chunkSize, body.length - offset);
+			byte[] size = (Integer.toHexString(length) + "\r\n").getBytes();
+			result.write(size, 0, size.length);
+			result.write(body, offset, length);
+			result.write('\r');
+			result.write('\n');
+		}
+		byte[] end = ("0\r\n" + (trailers == null ? "" : trailers) + "\r\n").getBytes();
+		result.write(end, 0, end.length);
+		return result.toByteArray();
+	}
+
+	/**
+	 * Frame the given bytes, fed in slices, with the given mode of the framer.
+	 *
+	 * @return the output of the framer, or null if there was none.
+	 */
+	static byte[] frame(BodyFramer framer, byte[] wire, int sliceSize, ByteBuffer out) throws ProxyException {
+		ByteArrayOutputStream result = out == null ? null : new ByteArrayOutputStream();
+		ByteBuffer in = ByteBuffer.wrap(wire);
+		int offset = 0;
+		while (!framer.isDone()) {
+			if (!in.hasRemaining() && offset < wire.length) {
+				in.limit(Math.min(offset + sliceSize, wire.length));
+				in.position(offset);
+			}
+			boolean done = in.hasRemaining() ? framer.process(in, out) : framer.finish(out);
+			offset = in.position();
+			if (out != null) {
+				out.flip();
+				result.write(out.array(), 0, out.limit());
+				out.clear();
+			}
+			if (done)
+				break;
+		}
+		if (offset != wire.length)
+			throw new IllegalStateException("The framer stopped " + (wire.length - offset) + " bytes before the end");
+		return result == null ? null : result.toByteArray();
+	}
+
+	static void check(Input input, byte[] body, int sliceSize) throws ProxyException {
+		ByteBuffer out = ByteBuffer.allocate(sliceSize);
+		byte[] dechunked = frame(input.framer(BodyFramer.DECHUNK), input.wire, sliceSize, out);
+		if (!Arrays.equals(dechunked, body))
+			throw new IllegalStateException("Dechunking " + input.name + " didn't give the body back");
+		byte[] passed = frame(input.framer(BodyFramer.PASS_THROUGH), input.wire, sliceSize, out);
+		if (!Arrays.equals(passed, input.wire))
+			throw new IllegalStateException("Passing " + input.name + " through changed it");
+		byte[] rechunked = frame(input.framer(BodyFramer.RECHUNK), input.wire, sliceSize, out);
+		byte[] roundTrip = frame(BodyFramer.forChunked(BodyFramer.DECHUNK), rechunked, sliceSize, out);
+		if (!Arrays.equals(roundTrip, body))
+			throw new IllegalStateException("Rechunking " + input.name + " didn't give the body back");
+	}
+
+	/**
+	 * @return how long framing the input that many times took, in nanoseconds.
+	 */
+	static long run(Input input, int m, int sliceSize, int messages) throws ProxyException {
+		int mode = m == 0 ? BodyFramer.PASS_THROUGH : m - 1;
+		// room for a slice, and for the framing a slice gets when rechunking
+		ByteBuffer out = m == 0 ? null : ByteBuffer.allocate(sliceSize + 64);
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			BodyFramer framer = input.framer(mode);
+			ByteBuffer in = ByteBuffer.wrap(input.wire);
+			for (int offset = 0; offset < input.wire.length && !framer.isDone(); offset = in.position()) {
+				in.limit(Math.min(offset + sliceSize, input.wire.length));
+				while (in.hasRemaining() && !framer.process(in, out) && out != null) {
+					out.clear();
+				}
+				if (out != null)
+					out.clear();
+			}
+			while (!framer.isDone() && out != null) {
+				framer.process(in, out);
+				out.clear();
+			}
+			sink += framer.getBodyBytes();
+		}
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,80 @@
+package webproxy.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of latencies, in microseconds.
+ * Values are kept with a relative precision of about 3%, which is
+ * more than enough to compare percentiles between two runs.
+ * 
+ * @author Amos Wenger
+ */
+public class LatencyHistogram {
+
+	/** Values under this are counted exactly */
+	static final int LINEAR_BUCKETS = 64;
+	
+	/** Sub-buckets per power of two past LINEAR_BUCKETS */
+	static final int SUB_BUCKETS = 32;
+	
+	final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + 58 * SUB_BUCKETS);
+	final AtomicLong total = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+	
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(indexOf(micros));
+		total.incrementAndGet();
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros))
+				break;
+		}
+	}
+	
+	public long getCount() {
+		return total.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the smallest recorded value such that the given percentage of values are lower or equal, in microseconds
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = total.get();
+		if (count == 0)
+			return 0;
+		long threshold = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long cumulated = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			cumulated += counts.get(i);
+			if (cumulated >= threshold)
+				return Math.min(valueOf(i), max.get());
+		}
+		return max.get();
+	}
+	
+	static int indexOf(long value) {
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value) - 5;
+		int sub = (int) (value >> exponent);
+		return LINEAR_BUCKETS + (exponent - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+	}
+	
+	/** @return the highest value counted in the given bucket */
+	static long valueOf(int index) {
+		if (index < LINEAR_BUCKETS)
+			return index;
+		int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << exponent) - 1;
+	}
+	
+}
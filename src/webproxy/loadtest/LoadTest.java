@@ -0,0 +1,316 @@
+package webproxy.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import webproxy.ProxyConfig;
+import webproxy.WebProxy;
+
+/**
+ * Open-loop load generator for the proxy.
+ * 
+ * Requests are issued at a constant rate, whether or not earlier ones have
+ * completed, by a pool of virtual clients. Latency is measured from the time
+ * a request was scheduled to be sent, not from when a client got around to
+ * sending it, so a stalled proxy shows up in the percentiles instead of
+ * silently lowering the request rate (coordinated omission).
+ * 
+ * Targets the embedded OriginServer, through either an external proxy or
+ * one started in-process, in which case heap and GC figures are the proxy's.
+ * 
+ * Run with -h for options. Exits with status 1 if the p99 latency or error
+ * rate exceeds the given limits, so it can gate releases.
+ * 
+ * @author Amos Wenger
+ */
+public class LoadTest {
+
+	String proxyHost = "localhost";
+	int proxyPort = WebProxy.DEFAULT_PORT;
+	int embeddedProxyPort = -1;
+	int embeddedThreads = 20;
+	String embeddedBuffer = "semaphore";
+	int embeddedShards = 1;
+	int originPort = 0;
+	double rate = 100;
+	int durationSeconds = 30;
+	int warmupSeconds = 5;
+	int clients = 64;
+	String[] paths = { "/fixed/1024" };
+	double maxP99Millis = -1;
+	double maxErrorRate = -1;
+	
+	final LatencyHistogram latencies = new LatencyHistogram();
+	final AtomicLong completed = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+	final AtomicLong bytes = new AtomicLong();
+	final AtomicLong maxHeapUsed = new AtomicLong();
+	
+	volatile boolean sampling = true;
+	
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		if (!test.parse(args)) {
+			usage();
+			System.exit(2);
+		}
+		System.exit(test.run() ? 0 : 1);
+	}
+	
+	static void usage() {
+		System.out.println("Usage: LoadTest [options]\n" +
+				"  --proxy host:port       proxy to load (default localhost:" + WebProxy.DEFAULT_PORT + ")\n" +
+				"  --embedded-proxy port   start the proxy in-process on this port instead\n" +
+				"  --threads N             worker threads of each embedded proxy shard (default 20)\n" +
+				"  --buffer semaphore|monitor|fair|stealing  request buffer of the embedded proxy (default semaphore)\n" +
+				"  --shards N              shards of the embedded proxy, 0 for one per processor (default 1)\n" +
+				"  --origin-port port      port of the embedded origin server (default: any free port)\n" +
+				"  --rate N                requests per second (default 100)\n" +
+				"  --duration S            measured seconds (default 30)\n" +
+				"  --warmup S              seconds of load before measuring (default 5)\n" +
+				"  --clients N             virtual clients (default 64)\n" +
+				"  --paths p1,p2,...       origin paths requested in turn (default /fixed/1024)\n" +
+				"                          /fixed/N, /slow/N?delay=ms, /chunked/N, /huge/N, ?maxage=S to allow caching\n" +
+				"  --max-p99 ms            fail if the p99 latency is above this\n" +
+				"  --max-error-rate r      fail if more than this fraction of requests fail");
+	}
+	
+	boolean parse(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-h") || arg.equals("--help")) {
+					return false;
+				} else if (arg.equals("--proxy")) {
+					String[] hostPort = args[++i].split(":");
+					proxyHost = hostPort[0];
+					proxyPort = Integer.parseInt(hostPort[1]);
+				} else if (arg.equals("--embedded-proxy")) {
+					embeddedProxyPort = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--threads")) {
+					embeddedThreads = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--buffer")) {
+					embeddedBuffer = args[++i];
+				} else if (arg.equals("--shards")) {
+					embeddedShards = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--origin-port")) {
+					originPort = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--rate")) {
+					rate = Double.parseDouble(args[++i]);
+				} else if (arg.equals("--duration")) {
+					durationSeconds = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--warmup")) {
+					warmupSeconds = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--clients")) {
+					clients = Integer.parseInt(args[++i]);
+				} else if (arg.equals("--paths")) {
+					paths = args[++i].split(",");
+				} else if (arg.equals("--max-p99")) {
+					maxP99Millis = Double.parseDouble(args[++i]);
+				} else if (arg.equals("--max-error-rate")) {
+					maxErrorRate = Double.parseDouble(args[++i]);
+				} else {
+					System.out.println("Unknown option: " + arg);
+					return false;
+				}
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Invalid arguments: " + e);
+			return false;
+		}
+		return rate > 0 && clients > 0 && durationSeconds > 0;
+	}
+	
+	/**
+	 * @return true if the run stayed within the given limits
+	 */
+	boolean run() throws Exception {
+		OriginServer origin = new OriginServer(originPort);
+		if (embeddedProxyPort != -1)
+			startEmbeddedProxy();
+		startSampler();
+		
+		System.out.println("Loading " + proxyHost + ":" + proxyPort + " at " + rate + " req/s with " + clients
+				+ " clients, origin on port " + origin.getPort());
+		
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		long intervalNanos = (long) (1e9 / rate);
+		long start = System.nanoTime();
+		long measureStart = start + warmupSeconds * 1000000000L;
+		long end = measureStart + durationSeconds * 1000000000L;
+		long gcCountBefore = 0, gcTimeBefore = 0;
+		boolean measuring = warmupSeconds == 0;
+		
+		for (long i = 0; ; i++) {
+			final long intended = start + i * intervalNanos;
+			if (intended >= end)
+				break;
+			long now;
+			while ((now = System.nanoTime()) < intended)
+				LockSupport.parkNanos(intended - now);
+			
+			if (!measuring && intended >= measureStart) {
+				measuring = true;
+				maxHeapUsed.set(0);
+				gcCountBefore = gcCount();
+				gcTimeBefore = gcTime();
+			}
+			
+			final boolean measured = measuring;
+			final String url = "http://127.0.0.1:" + origin.getPort() + paths[(int) (i % paths.length)];
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					request(url, intended, measured);
+				}
+			});
+		}
+		
+		pool.shutdown();
+		pool.awaitTermination(5, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - measureStart;
+		sampling = false;
+		origin.close();
+		
+		return report(elapsed, gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+	}
+	
+	void request(String url, long intended, boolean measured) {
+		Socket socket = new Socket();
+		boolean ok = false;
+		long received = 0;
+		try {
+			socket.setSoTimeout(60000);
+			socket.connect(new InetSocketAddress(proxyHost, proxyPort), 10000);
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + url + " HTTP/1.1\r\nHost: 127.0.0.1\r\nUser-Agent: webproxy-loadtest\r\n\r\n").getBytes());
+			out.flush();
+			
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[16384];
+			byte[] statusLine = new byte[12];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (received < statusLine.length)
+					System.arraycopy(buffer, 0, statusLine, (int) received, (int) Math.min(read, statusLine.length - received));
+				received += read;
+			}
+			ok = new String(statusLine).matches("HTTP/1\\.[01] 200");
+		} catch (IOException e) {
+			ok = false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) { }
+		}
+		
+		if (!measured)
+			return;
+		latencies.record((System.nanoTime() - intended) / 1000L);
+		bytes.addAndGet(received);
+		if (ok)
+			completed.incrementAndGet();
+		else
+			errors.incrementAndGet();
+	}
+	
+	boolean report(long elapsedNanos, long gcCount, long gcTimeMillis) {
+		double seconds = elapsedNanos / 1e9;
+		long total = latencies.getCount();
+		double errorRate = total == 0 ? 0 : (double) errors.get() / total;
+		double p99 = latencies.getValueAtPercentile(99) / 1000.0;
+		
+		System.out.println();
+		System.out.println(String.format("requests:   %d ok, %d errors (%.2f%%) in %.1fs", completed.get(), errors.get(), errorRate * 100, seconds));
+		System.out.println(String.format("throughput: %.1f req/s, %.2f MB/s", completed.get() / seconds, bytes.get() / seconds / 1048576.0));
+		System.out.println(String.format("latency:    p50 %.2fms, p90 %.2fms, p99 %.2fms, p99.9 %.2fms, max %.2fms",
+				latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0,
+				p99, latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0));
+		System.out.println(String.format("heap:       max used %.1f MB of %.1f MB (%s)", maxHeapUsed.get() / 1048576.0,
+				ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax() / 1048576.0,
+				embeddedProxyPort != -1 ? "proxy and load generator" : "load generator only"));
+		System.out.println(String.format("gc:         %d collections, %d ms", gcCount, gcTimeMillis));
+		
+		boolean pass = true;
+		if (maxP99Millis >= 0 && p99 > maxP99Millis) {
+			System.out.println("FAIL: p99 latency " + p99 + "ms is above " + maxP99Millis + "ms");
+			pass = false;
+		}
+		if (maxErrorRate >= 0 && errorRate > maxErrorRate) {
+			System.out.println("FAIL: error rate " + errorRate + " is above " + maxErrorRate);
+			pass = false;
+		}
+		return pass;
+	}
+	
+	void startEmbeddedProxy() throws Exception {
+		final ProxyConfig config = ProxyConfig.fromCommandLine(new String[] {
+				"--ports", String.valueOf(embeddedProxyPort),
+				"--workers", String.valueOf(embeddedThreads),
+				"--buffer", embeddedBuffer,
+				"--shards", String.valueOf(embeddedShards),
+				// the origin server runs on this machine
+				"--origin.allow.local", "true" });
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				new WebProxy(config);
+			}
+		}, "embedded-proxy");
+		thread.setDaemon(true);
+		thread.start();
+		
+		proxyHost = "localhost";
+		proxyPort = embeddedProxyPort;
+		// give the proxy time to start listening
+		Thread.sleep(1000);
+	}
+	
+	void startSampler() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (sampling) {
+					long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+					long current;
+					while (used > (current = maxHeapUsed.get()) && !maxHeapUsed.compareAndSet(current, used)) { }
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "heap-sampler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	static long gcCount() {
+		long count = 0;
+		List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean bean : beans)
+			count += Math.max(0, bean.getCollectionCount());
+		return count;
+	}
+	
+	static long gcTime() {
+		long time = 0;
+		List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean bean : beans)
+			time += Math.max(0, bean.getCollectionTime());
+		return time;
+	}
+	
+}
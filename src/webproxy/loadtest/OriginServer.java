@@ -0,0 +1,269 @@
+package webproxy.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal HTTP origin server to drive load through the proxy without
+ * depending on the outside world. It answers GET and HEAD on:
+ * 
+ * <ul>
+ * <li>/fixed/N: N bytes with a Content-Length</li>
+ * <li>/slow/N: N bytes with a Content-Length, dripped 1KB every 'delay' ms (default 10)</li>
+ * <li>/chunked/N: N bytes with chunked transfer encoding</li>
+ * <li>/huge/N: N bytes with a Content-Length, generated on the fly so any size can be served</li>
+ * </ul>
+ * 
+ * Responses carry 'Cache-Control: no-store' unless a 'maxage' query parameter
+ * is given. Connections are closed after each response if the request asks for
+ * it, as the proxy does with origin servers, and kept open otherwise, as with
+ * reverse-proxy backends. A base latency can be added to every response, to
+ * stand in for backends of different speeds.
+ * 
+ * @author Amos Wenger
+ */
+public class OriginServer implements Runnable {
+
+	static final int CHUNK_SIZE = 4096;
+	
+	static final int DRIP_SIZE = 1024;
+	
+	/** Pre-generated body bytes, repeated as needed */
+	static final byte[] PATTERN = new byte[65536];
+	static {
+		for (int i = 0; i < PATTERN.length; i++)
+			PATTERN[i] = (byte) ('a' + i % 26);
+	}
+	
+	Logger logger = Logger.getLogger(getClass().getSimpleName());
+	
+	final ServerSocket server;
+	
+	final ExecutorService pool = Executors.newCachedThreadPool();
+	
+	/** Milliseconds waited before answering each request */
+	final long latency;
+	
+	/**
+	 * Start serving on a port in a background thread.
+	 * 
+	 * @param port the port to listen on, or 0 to pick a free one
+	 */
+	public OriginServer(int port) throws IOException {
+		this(port, 0);
+	}
+	
+	/**
+	 * Start serving on a port in a background thread, answering each request late.
+	 * 
+	 * @param port the port to listen on, or 0 to pick a free one
+	 * @param latency milliseconds to wait before answering each request
+	 */
+	public OriginServer(int port, long latency) throws IOException {
+		this.latency = latency;
+		server = new ServerSocket(port, 1024);
+		Thread thread = new Thread(this, "origin-acceptor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public int getPort() {
+		return server.getLocalPort();
+	}
+	
+	public void close() throws IOException {
+		server.close();
+		pool.shutdownNow();
+	}
+	
+	@Override
+	public void run() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(socket);
+						} catch (IOException e) {
+							logger.log(Level.FINE, "origin: " + e);
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) { }
+						}
+					}
+				});
+			} catch (IOException e) {
+				if (!server.isClosed())
+					logger.log(Level.WARNING, "origin: couldn't accept: " + e);
+			}
+		}
+	}
+	
+	void serve(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE * 4);
+		
+		boolean close = false;
+		while (!close) {
+			String requestLine = readLine(in);
+			if (requestLine == null)
+				return;
+			String line;
+			while ((line = readLine(in)) != null && line.length() != 0) {
+				if (line.toLowerCase().startsWith("connection:") && line.toLowerCase().contains("close"))
+					close = true;
+			}
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			serve(requestLine, out, close);
+			out.flush();
+		}
+	}
+	
+	void serve(String requestLine, OutputStream out, boolean close) throws IOException {
+		String[] parts = requestLine.split(" ");
+		if (parts.length < 2) {
+			writeHead(out, "400 Bad Request", "Content-Length: 0\r\n", close);
+			return;
+		}
+		boolean head = parts[0].equalsIgnoreCase("HEAD");
+		
+		// the proxy may send absolute or origin-form URIs
+		String target = parts[1];
+		if (target.startsWith("http://")) {
+			int slash = target.indexOf('/', 7);
+			target = slash == -1 ? "/" : target.substring(slash);
+		}
+		String query = "";
+		int question = target.indexOf('?');
+		if (question != -1) {
+			query = target.substring(question + 1);
+			target = target.substring(0, question);
+		}
+		
+		String[] segments = target.split("/");
+		long size;
+		try {
+			size = segments.length == 3 ? Long.parseLong(segments[2]) : -1;
+		} catch (NumberFormatException e) {
+			size = -1;
+		}
+		if (size < 0) {
+			writeHead(out, "404 Not Found", "Content-Length: 0\r\n", close);
+			return;
+		}
+		
+		String maxAge = parameter(query, "maxage");
+		String cacheControl = maxAge == null ? "Cache-Control: no-store\r\n" : "Cache-Control: max-age=" + maxAge + "\r\n";
+		String kind = segments[1];
+		
+		if (kind.equals("fixed") || kind.equals("huge")) {
+			writeHead(out, "200 OK", cacheControl + "Content-Length: " + size + "\r\n", close);
+			if (!head)
+				writeBody(out, size, 0L);
+		} else if (kind.equals("slow")) {
+			String delay = parameter(query, "delay");
+			writeHead(out, "200 OK", cacheControl + "Content-Length: " + size + "\r\n", close);
+			if (!head)
+				writeBody(out, size, delay == null ? 10L : Long.parseLong(delay));
+		} else if (kind.equals("chunked")) {
+			writeHead(out, "200 OK", cacheControl + "Transfer-Encoding: chunked\r\n", close);
+			if (!head) {
+				long remaining = size;
+				while (remaining > 0) {
+					int length = (int) Math.min(CHUNK_SIZE, remaining);
+					out.write((Integer.toHexString(length) + "\r\n").getBytes());
+					out.write(PATTERN, 0, length);
+					out.write("\r\n".getBytes());
+					remaining -= length;
+				}
+				out.write("0\r\n\r\n".getBytes());
+			}
+		} else {
+			writeHead(out, "404 Not Found", "Content-Length: 0\r\n", close);
+		}
+	}
+	
+	private void writeHead(OutputStream out, String status, String headers, boolean close) throws IOException {
+		out.write(("HTTP/1.1 " + status + "\r\n" +
+				"Content-Type: application/octet-stream\r\n" +
+				headers +
+				(close ? "Connection: close\r\n" : "") + "\r\n").getBytes());
+	}
+	
+	/**
+	 * Write size bytes of the pattern, pausing delay ms every DRIP_SIZE bytes if delay > 0.
+	 */
+	private void writeBody(OutputStream out, long size, long delay) throws IOException {
+		int step = delay > 0 ? DRIP_SIZE : PATTERN.length;
+		long remaining = size;
+		while (remaining > 0) {
+			int length = (int) Math.min(step, remaining);
+			out.write(PATTERN, 0, length);
+			remaining -= length;
+			if (delay > 0) {
+				out.flush();
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
+	private static String parameter(String query, String name) {
+		for (String pair : query.split("&")) {
+			if (pair.startsWith(name + "="))
+				return pair.substring(name.length() + 1);
+		}
+		return null;
+	}
+	
+	static String readLine(InputStream in) throws IOException {
+		StringBuffer line = new StringBuffer();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+			line.append((char) b);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+	
+	/**
+	 * Run the origin server on its own, eg. to point a browser at it through the proxy,
+	 * or as a stand-in backend for the reverse-proxy mode.
+	 * 
+	 * @param args the port (default 9090), and the latency added to each response in ms (default 0)
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		OriginServer origin = new OriginServer(port, latency);
+		Logger.getLogger("OriginServer").log(Level.INFO, "Origin server listening on port " + origin.getPort());
+		Thread.currentThread().join();
+	}
+	
+}